@@ -1,20 +1,256 @@
 package RealWorldExample;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Priority classes, most urgent first
+enum Priority {
+    INTERACTIVE,
+    NORMAL,
+    BATCH
+}
 
 // Command Interface
 interface Command {
     void execute();
     int getId();
     int getStatus();
+
+    default Priority getPriority() {
+        return Priority.NORMAL;
+    }
+
+    // System.nanoTime() by which the command should start, Long.MAX_VALUE for none
+    default long getDeadline() {
+        return Long.MAX_VALUE;
+    }
+}
+
+// An open document, shared by the commands of a batch so that the file is
+// opened once. The content stays on disk: commands hand it to another channel
+// with transferTo or read it in chunks, so no document is held on the heap.
+// Each command still reads the bytes it needs; only the open is shared.
+class LoadedDocument implements AutoCloseable {
+    private static final LongAdder opens = new LongAdder();
+
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+
+    private LoadedDocument(String name, FileChannel channel, long size) {
+        this.name = name;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    // A missing file loads as an empty document that does not exist
+    public static LoadedDocument load(String name) {
+        opens.increment();
+        Path path = Path.of(name);
+        if (!Files.exists(path)) {
+            return new LoadedDocument(name, null, 0);
+        }
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            return new LoadedDocument(name, channel, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The number of times a document file has been opened
+    public static long getOpenCount() {
+        return opens.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean exists() {
+        return channel != null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // Read with positional reads or transferTo only, the channel is shared
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("LoadedDocument: Could not close '" + name + "': " + e.getMessage());
+            }
+        }
+    }
+}
+
+// A streaming document conversion, fed the input one chunk at a time
+interface ChunkConverter {
+    // Move as much of input as fits into output, converted; both are direct buffers
+    void convert(ByteBuffer input, ByteBuffer output);
+
+    String getExtension();
+}
+
+// Keeps the printable ASCII text and line breaks of a document
+class TextExtractor implements ChunkConverter {
+    @Override
+    public void convert(ByteBuffer input, ByteBuffer output) {
+        while (input.hasRemaining() && output.hasRemaining()) {
+            byte b = input.get();
+            if ((b >= 0x20 && b < 0x7f) || b == '\n' || b == '\t') {
+                output.put(b);
+            }
+        }
+    }
+
+    @Override
+    public String getExtension() {
+        return ".txt";
+    }
+}
+
+// How often and how far apart a failed command is tried again. The delay
+// doubles with every attempt up to maxBackoff; the actual delay is drawn
+// between half of it and all of it so that commands that failed together
+// do not all come back at the same moment.
+class RetryPolicy {
+    public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO);
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    public boolean shouldRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    // Delay before the attempt after `attempts` failed ones
+    public long backoffNanos(int attempts) {
+        long backoff = initialBackoffNanos << Math.min(attempts - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffNanos) {
+            backoff = maxBackoffNanos;
+        }
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
+
+// A command that failed on its last allowed attempt
+class DeadLetter {
+    private final DocumentCommand command;
+    private final RuntimeException cause;
+    private final int attempts;
+    private final long failedAtMillis = System.currentTimeMillis();
+
+    DeadLetter(DocumentCommand command, RuntimeException cause, int attempts) {
+        this.command = command;
+        this.cause = cause;
+        this.attempts = attempts;
+    }
+
+    public DocumentCommand getCommand() {
+        return command;
+    }
+
+    public RuntimeException getCause() {
+        return cause;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getFailedAtMillis() {
+        return failedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return command.getClass().getSimpleName() + " " + command.getId() + " ('" + command.getDocument()
+            + "') failed after " + attempts + " attempt(s): " + cause;
+    }
 }
 
 // Abstract DocumentCommand
 abstract class DocumentCommand implements Command {
-    protected int id;
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    protected final int id = ids.incrementAndGet();
+    protected volatile CompletableFuture<Command> completion = new CompletableFuture<>();
     protected int status;
     protected String document;
+    protected Priority priority = Priority.NORMAL;
+    protected long deadline = Long.MAX_VALUE;
+    protected DocumentBatchCommand batch;
+    protected final List<DocumentCommand> dependencies = new ArrayList<>();
+    protected volatile long queuedAt;
+    protected volatile long startedAt;
+    protected volatile long finishedAt;
+    protected RetryPolicy retryPolicy = RetryPolicy.NONE;
+    protected int attempts;
+    protected int journalSegment = -1;
+    protected boolean journalDeadLetter;
+    private LoadedDocument opened;
 
     public DocumentCommand(String document) {
         this.document = document;
@@ -29,14 +265,150 @@ abstract class DocumentCommand implements Command {
         return status;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public DocumentCommand withPriority(Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public DocumentCommand withDeadline(Duration fromNow) {
+        this.deadline = System.nanoTime() + fromNow.toNanos();
+        return this;
+    }
+
+    public String getDocument() {
+        return document;
+    }
+
+    public DocumentCommand withRetry(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    // Run this command only after the given commands have completed
+    public DocumentCommand after(DocumentCommand... commands) {
+        dependencies.addAll(Arrays.asList(commands));
+        return this;
+    }
+
+    public List<DocumentCommand> getDependencies() {
+        return dependencies;
+    }
+
+    // Completes with this command, or exceptionally with the failure
+    public CompletableFuture<Command> getCompletion() {
+        return completion;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    // The open document, shared with the other commands of the batch if there is one
+    protected LoadedDocument load() {
+        if (batch != null) {
+            return batch.getLoaded();
+        }
+        if (opened == null) {
+            opened = LoadedDocument.load(document);
+        }
+        return opened;
+    }
+
+    // A failure is handed to the queue, which retries the command or gives up on it
     public void execute() {
-        process();
+        attempts++;
+        startedAt = System.nanoTime();
+        try {
+            process();
+        } catch (RuntimeException e) {
+            finishedAt = System.nanoTime();
+            CommandQueue.getInstance().failCommand(this, e);
+            return;
+        } finally {
+            if (opened != null) {
+                opened.close();
+                opened = null;
+            }
+        }
+        finishedAt = System.nanoTime();
         complete();
     }
 
+    // Write to a temporary file next to the target and move it into place, so that
+    // readers never see a partial document. Every write gets its own temporary
+    // file, so concurrent writes of the same target never mix; the last move wins.
+    protected static void writeAtomically(Path target, ChannelWriter writer) {
+        Path temporary = null;
+        try {
+            Path directory = target.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                writer.write(out);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(temporary);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            deleteQuietly(temporary);
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(Path temporary) {
+        if (temporary == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            System.out.println("DocumentCommand: Could not delete " + temporary + ": " + e.getMessage());
+        }
+    }
+
+    interface ChannelWriter {
+        void write(FileChannel out) throws IOException;
+    }
+
+    // Make a dead-lettered command runnable again, with a new future
+    void reset() {
+        status = 0;
+        attempts = 0;
+        batch = null;
+        startedAt = 0;
+        finishedAt = 0;
+        completion = new CompletableFuture<>();
+    }
+
     public void complete() {
         this.status = 1;
         CommandQueue.getInstance().completeCommand(this);
+        completion.complete(this);
     }
 
     protected abstract void process();
@@ -46,85 +418,2117 @@ abstract class DocumentCommand implements Command {
 class PrintDocumentCommand extends DocumentCommand {
     public PrintDocumentCommand(String document) {
         super(document);
+        this.priority = Priority.INTERACTIVE;
     }
 
     @Override
     protected void process() {
-        System.out.println("PrintDocumentCommand: Printing document '" + document + "'.");
+        LoadedDocument loaded = load();
+        System.out.println("PrintDocumentCommand: Printing document '" + document + "' ("
+            + loaded.getSize() + " bytes).");
     }
 }
 
 // Concrete Save Command
+// Copies the document into the destination directory with transferTo, which
+// lets the kernel move the bytes without passing them through the heap
 class SaveDocumentCommand extends DocumentCommand {
+    private final Path destination;
+
     public SaveDocumentCommand(String document) {
+        this(document, Path.of("saved"));
+    }
+
+    public SaveDocumentCommand(String document, Path destination) {
         super(document);
+        this.destination = destination;
     }
 
     @Override
     protected void process() {
-        System.out.println("SaveDocumentCommand: Saving document '" + document + "'.");
+        LoadedDocument loaded = load();
+        if (!loaded.exists()) {
+            System.out.println("SaveDocumentCommand: Nothing to save, '" + document + "' does not exist.");
+            return;
+        }
+        Path target = destination.resolve(Path.of(document).getFileName());
+        writeAtomically(target, out -> {
+            FileChannel in = loaded.getChannel();
+            for (long position = 0; position < loaded.getSize(); ) {
+                long transferred = in.transferTo(position, loaded.getSize() - position, out);
+                if (transferred == 0) {
+                    // Nothing left at this position: the document was truncated meanwhile
+                    throw new IOException("'" + document + "' shrank to " + in.size() + " bytes while saving.");
+                }
+                position += transferred;
+            }
+        });
+        System.out.println("SaveDocumentCommand: Saved document '" + document + "' ("
+            + loaded.getSize() + " bytes) to " + target + ".");
     }
 }
 
 // Concrete Convert Command
+// Streams the document through the converter in chunks, using two direct
+// buffers per worker thread, so memory use does not grow with the document
 class ConvertDocumentCommand extends DocumentCommand {
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() ->
+        new ByteBuffer[] {ByteBuffer.allocateDirect(CHUNK_BYTES), ByteBuffer.allocateDirect(CHUNK_BYTES)});
+
+    private final Path destination;
+    private final ChunkConverter converter;
+
     public ConvertDocumentCommand(String document) {
+        this(document, Path.of("converted"), new TextExtractor());
+    }
+
+    public ConvertDocumentCommand(String document, Path destination, ChunkConverter converter) {
         super(document);
+        this.priority = Priority.BATCH;
+        this.destination = destination;
+        this.converter = converter;
     }
 
     @Override
     protected void process() {
-        System.out.println("ConvertDocumentCommand: Converting document '" + document + "'.");
+        LoadedDocument loaded = load();
+        if (!loaded.exists()) {
+            System.out.println("ConvertDocumentCommand: Nothing to convert, '" + document + "' does not exist.");
+            return;
+        }
+        Path target = destination.resolve(Path.of(document).getFileName() + converter.getExtension());
+        ByteBuffer input = buffers.get()[0];
+        ByteBuffer output = buffers.get()[1];
+        writeAtomically(target, out -> {
+            FileChannel in = loaded.getChannel();
+            long position = 0;
+            input.clear();
+            while (position < loaded.getSize()) {
+                int read = in.read(input, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                input.flip();
+                while (input.hasRemaining()) {
+                    output.clear();
+                    converter.convert(input, output);
+                    output.flip();
+                    while (output.hasRemaining()) {
+                        out.write(output);
+                    }
+                }
+                input.clear();
+            }
+        });
+        System.out.println("ConvertDocumentCommand: Converted document '" + document + "' ("
+            + loaded.getSize() + " bytes) to " + target + ".");
     }
 }
 
-// Command Queue (Singleton)
-class CommandQueue {
-    private Queue<Command> queue = new LinkedList<>();
-    private static CommandQueue instance;
+// Commands for the same document that arrived within one coalescing window.
+// The document is opened on first use and shared by every command of the batch.
+// The batch runs at the most urgent priority and earliest deadline of its commands.
+class DocumentBatchCommand implements Command {
+    private final String document;
+    private final List<DocumentCommand> commands = new ArrayList<>();
+    private LoadedDocument loaded;
+    private boolean sealed;
 
-    private CommandQueue() {}
+    DocumentBatchCommand(DocumentCommand first) {
+        this.document = first.getDocument();
+        add(first);
+    }
 
-    public static CommandQueue getInstance() {
-        if (instance == null) {
-            instance = new CommandQueue();
+    private void add(DocumentCommand command) {
+        command.batch = this;
+        commands.add(command);
+    }
+
+    // Returns false once the window has closed and the batch has been queued
+    synchronized boolean tryAdd(DocumentCommand command) {
+        if (sealed) {
+            return false;
         }
-        return instance;
+        add(command);
+        return true;
     }
 
-    public void addCommand(Command command) {
-        queue.offer(command);
+    synchronized void seal() {
+        sealed = true;
     }
 
-    public Command getCommand() {
-        return queue.poll();
+    synchronized LoadedDocument getLoaded() {
+        if (loaded == null) {
+            loaded = LoadedDocument.load(document);
+        }
+        return loaded;
     }
 
-    public void completeCommand(Command command) {
-        // Logic to mark the command as completed
+    public String getDocument() {
+        return document;
     }
 
-    public void work() {
-        while (!queue.isEmpty()) {
-            Command command = getCommand();
-            if (command != null) {
+    public synchronized int size() {
+        return commands.size();
+    }
+
+    public synchronized List<DocumentCommand> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    @Override
+    public void execute() {
+        try {
+            for (DocumentCommand command : commands) {
                 command.execute();
             }
+        } finally {
+            synchronized (this) {
+                if (loaded != null) {
+                    loaded.close();
+                    loaded = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getId() {
+        return commands.get(0).getId();
+    }
+
+    @Override
+    public int getStatus() {
+        return commands.stream().allMatch(command -> command.getStatus() == 1) ? 1 : 0;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return commands.stream().map(Command::getPriority).min(Enum::compareTo).orElse(Priority.NORMAL);
+    }
+
+    @Override
+    public long getDeadline() {
+        return commands.stream().mapToLong(Command::getDeadline).min().orElse(Long.MAX_VALUE);
+    }
+}
+
+// Bounded lock-free multi-producer multi-consumer queue (Dmitry Vyukov's
+// array-based design). Every slot has a sequence number that tells producers
+// and consumers whose turn it is, so each operation is a single CAS on the
+// enqueue or dequeue position. The two positions sit 128 bytes apart in one
+// AtomicLongArray so producers and consumers do not share a cache line.
+class MpmcQueue<E> {
+    private static final int ENQUEUE = 16;
+    private static final int DEQUEUE = 32;
+
+    private final AtomicLongArray positions = new AtomicLongArray(48);
+    private final AtomicLongArray sequences;
+    private final Object[] slots;
+    private final int mask;
+
+    public MpmcQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.sequences = new AtomicLongArray(size);
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Returns false if the queue is full
+    public boolean offer(E element) {
+        long position = positions.get(ENQUEUE);
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.getAcquire(index) - position;
+            if (difference == 0) {
+                if (positions.compareAndSet(ENQUEUE, position, position + 1)) {
+                    slots[index] = element;
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = positions.get(ENQUEUE);
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = positions.get(ENQUEUE);
+            }
+        }
+    }
+
+    // Returns null if the queue is empty
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = positions.get(DEQUEUE);
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.getAcquire(index) - (position + 1);
+            if (difference == 0) {
+                if (positions.compareAndSet(DEQUEUE, position, position + 1)) {
+                    E element = (E) slots[index];
+                    slots[index] = null;
+                    sequences.setRelease(index, position + mask + 1);
+                    return element;
+                }
+                position = positions.get(DEQUEUE);
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = positions.get(DEQUEUE);
+            }
+        }
+    }
+
+    // Approximate while producers or consumers are active
+    public int size() {
+        return (int) Math.max(0, positions.get(ENQUEUE) - positions.get(DEQUEUE));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
+
+// Latency histogram with power-of-two microsecond buckets. Recording is two
+// LongAdder increments; percentiles are reported as the bucket's upper bound.
+class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        count.increment();
+        if (micros > max.get()) {
+            max.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public long percentileMicros(double percentile) {
+        long target = (long) Math.ceil(percentile / 100 * count.sum());
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target && seen > 0) {
+                return i == 0 ? 0 : Math.min(1L << i, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, p50=%dus, p99=%dus, max=%dus",
+            getCount(), percentileMicros(50), percentileMicros(99), getMaxMicros());
+    }
+}
+
+// A command waiting in the queue, with the time it was added
+class QueuedCommand implements Comparable<QueuedCommand> {
+    final Command command;
+    final long enqueuedAt = System.nanoTime();
+    final CompletableFuture<Command> completion = new CompletableFuture<>();
+    final int permits;
+    long sequence;
+    // Set once by the scheduler, so the heap never asks a batch for its deadline
+    long deadline;
+
+    // permits: the capacity the command holds until a worker takes it
+    QueuedCommand(Command command, int permits) {
+        this.command = command;
+        this.permits = permits;
+    }
+
+    // Earliest deadline first, then first come first served
+    @Override
+    public int compareTo(QueuedCommand other) {
+        int byDeadline = Long.compare(deadline, other.deadline);
+        return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+    }
+}
+
+// Picks the next command to run: one binary heap per priority class, ordered
+// by deadline. The class is chosen by rank, which is the class ordinal minus
+// one for every agingStep the head of that class has waited, so that a long
+// waiting batch command eventually competes with fresh interactive ones.
+// Within a class a command's deadline is capped at maxWait after it was
+// queued, so a command without a deadline still overtakes deadline commands
+// queued long after it. Add and take are O(log n) plus a scan over the
+// (three) class heads.
+class PriorityScheduler {
+    private final PriorityQueue<QueuedCommand>[] classes;
+    private final long agingStepNanos;
+    private final long maxWaitNanos;
+    private long nextSequence;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PriorityScheduler(Duration agingStep, Duration maxWait) {
+        this.classes = new PriorityQueue[Priority.values().length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new PriorityQueue<>();
+        }
+        this.agingStepNanos = agingStep.toNanos();
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    synchronized void add(QueuedCommand queued) {
+        queued.sequence = nextSequence++;
+        queued.deadline = Math.min(queued.command.getDeadline(), queued.enqueuedAt + maxWaitNanos);
+        classes[queued.command.getPriority().ordinal()].add(queued);
+        size++;
+    }
+
+    synchronized QueuedCommand take() {
+        long now = System.nanoTime();
+        PriorityQueue<QueuedCommand> best = null;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < classes.length; i++) {
+            QueuedCommand head = classes[i].peek();
+            if (head != null) {
+                long rank = i - (now - head.enqueuedAt) / agingStepNanos;
+                if (rank < bestRank) {
+                    bestRank = rank;
+                    best = classes[i];
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        size--;
+        return best.poll();
+    }
+
+    // Remove the command that has waited longest among those holding permits;
+    // dropping a retry, which holds none, would free no room. This scans every
+    // heap, which is fine for the overflow path it is used on.
+    synchronized QueuedCommand removeOldest() {
+        QueuedCommand oldest = null;
+        PriorityQueue<QueuedCommand> from = null;
+        for (PriorityQueue<QueuedCommand> heap : classes) {
+            for (QueuedCommand queued : heap) {
+                if (queued.permits > 0 && (oldest == null || queued.enqueuedAt < oldest.enqueuedAt)) {
+                    oldest = queued;
+                    from = heap;
+                }
+            }
+        }
+        if (oldest != null) {
+            from.remove(oldest);
+            size--;
+        }
+        return oldest;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
+
+// What addCommand does when the queue is at capacity
+enum OverflowPolicy {
+    BLOCK,          // wait for room
+    BLOCK_TIMEOUT,  // wait for room up to the configured timeout, then reject
+    REJECT,         // throw IllegalStateException
+    DROP_OLDEST,    // cancel the command that has waited longest
+    CALLER_RUNS     // run the command on the calling thread
+}
+
+// A set of document commands and their dependencies. Each command is queued
+// as soon as all of its dependencies have completed; the dependents of a
+// failed command are skipped. The report lists the critical path: the chain
+// of commands, each the last dependency to finish for the next, that ended
+// with the last command of the graph.
+class CommandGraph {
+    static class Node {
+        final DocumentCommand command;
+        final List<Node> inputs = new ArrayList<>();
+        final List<Node> dependents = new ArrayList<>();
+        final AtomicInteger remaining = new AtomicInteger();
+        volatile boolean failed;
+        volatile boolean skipped;
+
+        Node(DocumentCommand command) {
+            this.command = command;
+        }
+
+        @Override
+        public String toString() {
+            return command.getClass().getSimpleName() + "('" + command.getDocument() + "')";
+        }
+    }
+
+    private final Map<DocumentCommand, Node> nodes = new IdentityHashMap<>();
+    private final CountDownLatch done;
+    private final long submittedAt = System.nanoTime();
+
+    // Takes the given commands and every command they depend on, directly or not,
+    // that has not completed yet. Throws IllegalArgumentException on a cycle.
+    CommandGraph(Collection<? extends DocumentCommand> commands) {
+        for (DocumentCommand command : commands) {
+            visit(command, new ArrayDeque<>());
+        }
+        this.done = new CountDownLatch(nodes.size());
+    }
+
+    // Depth-first: a command met again while it is still on the path closes a cycle
+    private Node visit(DocumentCommand command, Deque<DocumentCommand> path) {
+        if (path.contains(command)) {
+            StringBuilder cycle = new StringBuilder();
+            boolean inCycle = false;
+            for (DocumentCommand onPath : (Iterable<DocumentCommand>) path::descendingIterator) {
+                inCycle |= onPath == command;
+                if (inCycle) {
+                    cycle.append(nodes.get(onPath)).append(" -> ");
+                }
+            }
+            throw new IllegalArgumentException("Dependency cycle: " + cycle + nodes.get(command));
+        }
+        Node node = nodes.get(command);
+        if (node != null) {
+            return node;
+        }
+        node = new Node(command);
+        nodes.put(command, node);
+        path.push(command);
+        for (DocumentCommand dependency : command.getDependencies()) {
+            if (dependency.getStatus() != 1) {
+                Node input = visit(dependency, path);
+                node.inputs.add(input);
+                input.dependents.add(node);
+            }
+        }
+        path.pop();
+        node.remaining.set(node.inputs.size());
+        return node;
+    }
+
+    Collection<DocumentCommand> getCommands() {
+        return nodes.keySet();
+    }
+
+    boolean isSkipped(DocumentCommand command) {
+        return nodes.get(command).skipped;
+    }
+
+    // Commands with nothing to wait for
+    List<DocumentCommand> getReady() {
+        List<DocumentCommand> ready = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.inputs.isEmpty()) {
+                ready.add(node.command);
+            }
+        }
+        return ready;
+    }
+
+    // Record the outcome of a command and return the dependents that became ready
+    List<DocumentCommand> finished(DocumentCommand command, boolean succeeded) {
+        Node node = nodes.get(command);
+        List<DocumentCommand> ready = new ArrayList<>();
+        node.failed = !succeeded;
+        done.countDown();
+        for (Node dependent : node.dependents) {
+            if (!succeeded) {
+                skip(dependent);
+            } else if (dependent.remaining.decrementAndGet() == 0 && !dependent.skipped) {
+                ready.add(dependent.command);
+            }
+        }
+        return ready;
+    }
+
+    private void skip(Node node) {
+        synchronized (node) {
+            if (node.skipped) {
+                return;
+            }
+            node.skipped = true;
+        }
+        done.countDown();
+        for (Node dependent : node.dependents) {
+            skip(dependent);
+        }
+    }
+
+    // Wait until every command has completed, failed or been skipped
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public String report() {
+        Node last = null;
+        long work = 0;
+        int failed = 0;
+        int skipped = 0;
+        for (Node node : nodes.values()) {
+            if (node.skipped) {
+                skipped++;
+                continue;
+            }
+            failed += node.failed ? 1 : 0;
+            work += node.command.getFinishedAt() - node.command.getStartedAt();
+            if (last == null || node.command.getFinishedAt() > last.command.getFinishedAt()) {
+                last = node;
+            }
+        }
+        StringBuilder report = new StringBuilder(String.format(
+            "Graph: %d commands, %d failed, %d skipped, work %.1fms",
+            nodes.size(), failed, skipped, work / 1e6));
+        if (last == null) {
+            return report.toString();
+        }
+        Deque<Node> path = new ArrayDeque<>();
+        for (Node node = last; node != null; ) {
+            path.push(node);
+            Node latest = null;
+            for (Node input : node.inputs) {
+                if (latest == null || input.command.getFinishedAt() > latest.command.getFinishedAt()) {
+                    latest = input;
+                }
+            }
+            node = latest;
+        }
+        report.append(String.format(", elapsed %.1fms%nCritical path:", (last.command.getFinishedAt() - submittedAt) / 1e6));
+        for (Node node : path) {
+            report.append(String.format(" %s %.1fms (waited %.1fms)", node,
+                (node.command.getFinishedAt() - node.command.getStartedAt()) / 1e6,
+                (node.command.getStartedAt() - (node.inputs.isEmpty() ? submittedAt
+                    : node.inputs.stream().mapToLong(input -> input.command.getFinishedAt()).max().getAsLong())) / 1e6));
+            if (node != last) {
+                report.append(" ->");
+            }
+        }
+        return report.toString();
+    }
+}
+
+// When the journal forces its writes to disk
+enum JournalSync {
+    PERIODIC,       // every sync interval, on the journal's own thread
+    GROUP_COMMIT    // before addCommand returns; concurrent producers share one force
+}
+
+// Append-only journal of the queue's commands in memory-mapped segment files.
+// A command is recorded when it is admitted and marked done when it completes,
+// is dropped or skipped; a dead-lettered command gets a record of its own. On
+// restart, the commands without a done record are read back, and dead letters
+// go back to the dead-letter queue. Every segment starts with the journal's
+// epoch, the index of the first segment the journal opened, because command
+// ids restart in every run: records only match within one epoch. Records are
+//   length, CRC-32 of the rest, then one of
+//   ADD:         'A', id, kind, priority, dependency count, dependency ids, name length, UTF-8 name
+//   DONE:        'D', id
+//   DEAD_LETTER: 'X', id, kind, priority, attempts, name length, UTF-8 name, cause length, UTF-8 cause
+// where the length is written last. Dirty pages of a mapped file reach the
+// disk in no particular order, so recovery also checks the CRC and stops at
+// the first record that does not match. A segment whose commands are all done
+// is deleted once the journal has moved on to the next one. Only Print, Save
+// and Convert commands are recorded; deadlines and retry policies are not.
+// Recovered commands are journaled again before the old segments are deleted,
+// so a crash in between runs them twice rather than not at all.
+class CommandJournal {
+    private static final int SEGMENT_BYTES = 64 << 20;
+    private static final int HEADER_BYTES = 4;
+    private static final int MAX_CAUSE_BYTES = 1024;
+    private static final byte ADD = 'A';
+    private static final byte DONE = 'D';
+    private static final byte DEAD_LETTER = 'X';
+
+    private static class Segment {
+        final int index;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int outstanding;
+        boolean sealed;
+
+        Segment(int index, Path path, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final JournalSync sync;
+    private final int epoch;
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private final List<Path> recovered = new ArrayList<>();
+    private final List<DeadLetter> recoveredDeadLetters = new ArrayList<>();
+    private final Object syncLock = new Object();
+    private final Thread syncer;
+    private Segment current;
+    private int position;
+    private long written;
+    private volatile long durable;
+    private volatile boolean closed;
+
+    public CommandJournal(Path directory, JournalSync sync, Duration syncInterval) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        Files.createDirectories(directory);
+        int next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "commands-*.journal")) {
+            for (Path file : files) {
+                recovered.add(file);
+                next = Math.max(next, segmentIndex(file) + 1);
+            }
+        }
+        recovered.sort((a, b) -> Integer.compare(segmentIndex(a), segmentIndex(b)));
+        this.epoch = next;
+        this.current = open(next);
+        if (sync == JournalSync.PERIODIC) {
+            this.syncer = new Thread(() -> {
+                while (!closed) {
+                    LockSupport.parkNanos(syncInterval.toNanos());
+                    force();
+                }
+            }, "command-journal-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    private static int segmentIndex(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("commands-".length(), name.length() - ".journal".length()));
+    }
+
+    private Segment open(int index) throws IOException {
+        Path path = directory.resolve(String.format("commands-%010d.journal", index));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(index, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES));
+            segment.buffer.putInt(0, epoch);
+            segments.put(index, segment);
+            position = HEADER_BYTES;
+            return segment;
+        }
+    }
+
+    private static byte kind(DocumentCommand command) {
+        Class<?> type = command.getClass();
+        return type == PrintDocumentCommand.class ? (byte) 1
+            : type == SaveDocumentCommand.class ? (byte) 2
+            : type == ConvertDocumentCommand.class ? (byte) 3 : 0;
+    }
+
+    private static DocumentCommand create(byte kind, String document) {
+        switch (kind) {
+            case 1: return new PrintDocumentCommand(document);
+            case 2: return new SaveDocumentCommand(document);
+            default: return new ConvertDocumentCommand(document);
+        }
+    }
+
+    private static long key(int epoch, int id) {
+        return (long) epoch << 32 | (id & 0xFFFFFFFFL);
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The pending commands of the segments found at startup, in the order they
+    // were added, with their dependencies on each other restored
+    public List<DocumentCommand> recover() throws IOException {
+        Map<Long, DocumentCommand> pending = new LinkedHashMap<>();
+        Map<Long, long[]> dependencies = new HashMap<>();
+        Map<Long, DeadLetter> deadLetters = new LinkedHashMap<>();
+        for (Path file : recovered) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER_BYTES) {
+                    continue;
+                }
+                int segmentEpoch = buffer.getInt();
+                while (buffer.remaining() >= 8) {
+                    int length = buffer.getInt();
+                    int crc = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()
+                            || crc != checksum(buffer, buffer.position(), length)) {
+                        break;
+                    }
+                    int end = buffer.position() + length;
+                    byte type = buffer.get();
+                    long key = key(segmentEpoch, buffer.getInt());
+                    if (type == ADD) {
+                        byte kind = buffer.get();
+                        Priority priority = Priority.values()[buffer.get()];
+                        long[] inputs = new long[buffer.getShort()];
+                        for (int i = 0; i < inputs.length; i++) {
+                            inputs[i] = key(segmentEpoch, buffer.getInt());
+                        }
+                        pending.put(key, create(kind, readString(buffer)).withPriority(priority));
+                        dependencies.put(key, inputs);
+                        deadLetters.remove(key);
+                    } else if (type == DEAD_LETTER) {
+                        byte kind = buffer.get();
+                        Priority priority = Priority.values()[buffer.get()];
+                        int attempts = buffer.getInt();
+                        DocumentCommand command = create(kind, readString(buffer)).withPriority(priority);
+                        pending.remove(key);
+                        deadLetters.put(key, new DeadLetter(command, new IllegalStateException(readString(buffer)), attempts));
+                    } else {
+                        pending.remove(key);
+                        deadLetters.remove(key);
+                    }
+                    buffer.position(end);
+                }
+            }
+        }
+        dependencies.forEach((key, inputs) -> {
+            DocumentCommand command = pending.get(key);
+            for (long input : inputs) {
+                if (command != null && pending.containsKey(input)) {
+                    command.after(pending.get(input));
+                }
+            }
+        });
+        recoveredDeadLetters.addAll(deadLetters.values());
+        return new ArrayList<>(pending.values());
+    }
+
+    // The dead letters found by recover(); journal them again with deadLettered()
+    public List<DeadLetter> getRecoveredDeadLetters() {
+        return new ArrayList<>(recoveredDeadLetters);
+    }
+
+    // Delete the segments read by recover(), once their commands have been journaled again
+    public void deleteRecovered() throws IOException {
+        force();
+        for (Path file : recovered) {
+            Files.deleteIfExists(file);
+        }
+        recovered.clear();
+        recoveredDeadLetters.clear();
+    }
+
+    public void added(DocumentCommand command) {
+        byte kind = kind(command);
+        if (kind == 0) {
+            return;
+        }
+        byte[] name = command.getDocument().getBytes(StandardCharsets.UTF_8);
+        List<DocumentCommand> inputs = command.getDependencies();
+        long end;
+        synchronized (this) {
+            MappedByteBuffer buffer = reserve(8 + 1 + 4 + 1 + 1 + 2 + 4 * inputs.size() + 2 + name.length);
+            int start = position;
+            int at = start + 8;
+            buffer.put(at, ADD);
+            buffer.putInt(at + 1, command.getId());
+            buffer.put(at + 5, kind);
+            buffer.put(at + 6, (byte) command.getPriority().ordinal());
+            buffer.putShort(at + 7, (short) inputs.size());
+            at += 9;
+            for (DocumentCommand input : inputs) {
+                buffer.putInt(at, input.getId());
+                at += 4;
+            }
+            buffer.putShort(at, (short) name.length);
+            buffer.put(at + 2, name);
+            end = append(buffer, start, at + 2 + name.length);
+            // A replayed dead letter no longer needs its dead-letter record
+            track(command);
+        }
+        if (sync == JournalSync.GROUP_COMMIT) {
+            awaitDurable(end);
+        }
+    }
+
+    // Record a dead letter with everything needed to put it back in the
+    // dead-letter queue on restart; the command's done() is then ignored
+    public void deadLettered(DeadLetter deadLetter) {
+        DocumentCommand command = deadLetter.getCommand();
+        byte kind = kind(command);
+        if (kind == 0) {
+            return;
+        }
+        byte[] name = command.getDocument().getBytes(StandardCharsets.UTF_8);
+        byte[] cause = String.valueOf(deadLetter.getCause().getMessage()).getBytes(StandardCharsets.UTF_8);
+        int causeLength = Math.min(cause.length, MAX_CAUSE_BYTES);
+        long end;
+        synchronized (this) {
+            MappedByteBuffer buffer = reserve(8 + 1 + 4 + 1 + 1 + 4 + 2 + name.length + 2 + causeLength);
+            int start = position;
+            int at = start + 8;
+            buffer.put(at, DEAD_LETTER);
+            buffer.putInt(at + 1, command.getId());
+            buffer.put(at + 5, kind);
+            buffer.put(at + 6, (byte) command.getPriority().ordinal());
+            buffer.putInt(at + 7, deadLetter.getAttempts());
+            buffer.putShort(at + 11, (short) name.length);
+            buffer.put(at + 13, name);
+            at += 13 + name.length;
+            buffer.putShort(at, (short) causeLength);
+            buffer.put(at + 2, cause, 0, causeLength);
+            end = append(buffer, start, at + 2 + causeLength);
+            track(command);
+            command.journalDeadLetter = true;
+        }
+        if (sync == JournalSync.GROUP_COMMIT) {
+            awaitDurable(end);
+        }
+    }
+
+    public void done(DocumentCommand command) {
+        if (command.journalSegment < 0 || command.journalDeadLetter) {
+            return;
+        }
+        synchronized (this) {
+            MappedByteBuffer buffer = reserve(8 + 1 + 4);
+            int start = position;
+            buffer.put(start + 8, DONE);
+            buffer.putInt(start + 9, command.getId());
+            append(buffer, start, start + 13);
+            int segment = command.journalSegment;
+            command.journalSegment = -1;
+            release(segment);
+        }
+    }
+
+    // Seal the record between start and end with its CRC and then its length,
+    // and return the journal's total size including it
+    private long append(MappedByteBuffer buffer, int start, int end) {
+        buffer.putInt(start + 4, checksum(buffer, start + 8, end - start - 8));
+        buffer.putInt(start, end - start - 8);
+        position = end;
+        written += end - start;
+        return written;
+    }
+
+    // Count the command against the current segment instead of the one its
+    // previous record is in
+    private void track(DocumentCommand command) {
+        int previous = command.journalSegment;
+        current.outstanding++;
+        command.journalSegment = current.index;
+        command.journalDeadLetter = false;
+        if (previous >= 0) {
+            release(previous);
+        }
+    }
+
+    private void release(int index) {
+        Segment segment = segments.get(index);
+        if (segment != null && --segment.outstanding == 0 && segment.sealed) {
+            delete(segment);
+        }
+    }
+
+    // The current segment's buffer with room for `bytes` more, moving to a new segment if needed
+    private MappedByteBuffer reserve(int bytes) {
+        if (position + bytes > SEGMENT_BYTES) {
+            Segment full = current;
+            full.buffer.force();
+            full.sealed = true;
+            try {
+                current = open(full.index + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (full.outstanding == 0) {
+                delete(full);
+            }
+        }
+        return current.buffer;
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.index);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            System.out.println("CommandJournal: Could not delete " + segment.path + ": " + e.getMessage());
+        }
+    }
+
+    // Group commit: the first producer to get here forces everything written so far,
+    // the ones that queued up behind it find their records already durable
+    private void awaitDurable(long end) {
+        if (durable >= end) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable < end) {
+                force();
+            }
+        }
+    }
+
+    public void force() {
+        synchronized (syncLock) {
+            MappedByteBuffer buffer;
+            long upTo;
+            synchronized (this) {
+                buffer = current.buffer;
+                upTo = written;
+            }
+            buffer.force();
+            durable = upTo;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (syncer != null) {
+            LockSupport.unpark(syncer);
+        }
+        force();
+    }
+}
+
+// Queue wait and execution time of one command class
+class CommandStats {
+    final LatencyHistogram wait = new LatencyHistogram();
+    final LatencyHistogram execution = new LatencyHistogram();
+}
+
+// Command Queue (Singleton)
+// Commands run on the calling thread in work(), or on worker tasks submitted
+// to an executor by start(). Producers only touch the lock-free ingress queue;
+// idle workers park and a producer wakes one of them after enqueueing. Workers
+// move new arrivals into the priority scheduler and run whatever it picks.
+// Document commands are first held for a short window and queued as one batch
+// per document, so that a document with several commands is opened once.
+// Commands with dependencies are held back until their dependencies complete.
+// A failed command is put back into the queue by the timer after its retry
+// policy's backoff, so no worker waits for it; once its attempts are used up
+// it is kept in the dead-letter queue until it is replayed.
+// Every command that has been added and not yet taken by a worker, wherever it
+// waits, holds one permit of the capacity; the overflow policy decides what
+// happens when there is none left.
+class CommandQueue {
+    private static final int CAPACITY = 1 << 16;
+
+    private final MpmcQueue<QueuedCommand> queue = new MpmcQueue<>(CAPACITY);
+    private final PriorityScheduler scheduler = new PriorityScheduler(Duration.ofMillis(100), Duration.ofSeconds(1));
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Priority.values().length];
+    private final ConcurrentLinkedQueue<Thread> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object drained = new Object();
+    private final ConcurrentHashMap<String, DocumentBatchCommand> openBatches = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    private final ConcurrentLinkedQueue<DeadLetter> deadLetters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<DocumentCommand, CommandGraph> graphs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, CommandStats> stats = new ConcurrentHashMap<>();
+    private volatile CommandJournal journal;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "command-queue-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private volatile int capacity = 10_000;
+    private volatile Semaphore permits = new Semaphore(capacity);
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private volatile long blockTimeoutNanos;
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private volatile ExecutorService executor;
+    private volatile boolean shuttingDown;
+
+    private CommandQueue() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // The holder class is initialized on first use, which the JVM guarantees to do exactly once
+    private static class Holder {
+        static final CommandQueue INSTANCE = new CommandQueue();
+    }
+
+    public static CommandQueue getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // Create an executor for start(): "virtual" uses a virtual thread per
+    // command where the JDK provides them, anything else a fixed thread pool
+    public static ExecutorService newExecutor(String kind, int concurrency) {
+        if (kind.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("CommandQueue: virtual threads unavailable, using platform threads.");
+            }
+        }
+        return Executors.newFixedThreadPool(concurrency);
+    }
+
+    // Run commands on `concurrency` workers submitted to the executor
+    public synchronized void start(ExecutorService executor, int concurrency) {
+        if (this.executor != null) {
+            throw new IllegalStateException("CommandQueue is already started.");
+        }
+        this.executor = executor;
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(this::runWorker);
+        }
+    }
+
+    // Journal admitted commands to `directory` and add back the ones a previous
+    // run did not complete; its dead letters go back to the dead-letter queue.
+    // Call before adding commands. Returns the number of commands added back.
+    public synchronized int openJournal(Path directory, JournalSync sync, Duration syncInterval) throws IOException {
+        if (journal != null) {
+            throw new IllegalStateException("CommandQueue already has a journal.");
+        }
+        CommandJournal opened = new CommandJournal(directory, sync, syncInterval);
+        List<DocumentCommand> recovered = opened.recover();
+        journal = opened;
+        if (!recovered.isEmpty()) {
+            submitGraph(recovered);
+        }
+        for (DeadLetter deadLetter : opened.getRecoveredDeadLetters()) {
+            opened.deadLettered(deadLetter);
+            deadLetters.add(deadLetter);
+        }
+        opened.deleteRecovered();
+        return recovered.size();
+    }
+
+    // Zero queues every command on its own
+    public void setCoalesceWindow(Duration window) {
+        this.coalesceWindowNanos = window.toNanos();
+    }
+
+    // blockTimeout is used by BLOCK_TIMEOUT only. Change the capacity only while nothing is queued.
+    public synchronized void setCapacity(int capacity, OverflowPolicy policy, Duration blockTimeout) {
+        if (capacity < 1 || capacity > CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + CAPACITY + ".");
+        }
+        if (getDepth() > 0) {
+            throw new IllegalStateException("CommandQueue is not empty.");
+        }
+        this.permits = new Semaphore(capacity);
+        this.capacity = capacity;
+        this.overflowPolicy = policy;
+        this.blockTimeoutNanos = blockTimeout.toNanos();
+        highWaterMark.set(0);
+    }
+
+    // Commands added and not yet taken by a worker
+    public int getDepth() {
+        return capacity - permits.availablePermits();
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    // Take `count` permits according to the overflow policy. Returns false if the
+    // caller should run the command itself, throws IllegalStateException on rejection.
+    // More permits than the capacity could never be granted, so that is rejected up front.
+    private boolean admit(int count, boolean callerMayRun) {
+        Semaphore available = permits;
+        if (count > capacity) {
+            rejected.increment();
+            throw new IllegalArgumentException("Cannot admit " + count + " commands to a CommandQueue with capacity "
+                + capacity + ".");
+        }
+        if (!available.tryAcquire(count)) {
+            try {
+                switch (overflowPolicy) {
+                    case CALLER_RUNS:
+                        if (callerMayRun) {
+                            callerRuns.increment();
+                            return false;
+                        }
+                        available.acquire(count);
+                        break;
+                    case BLOCK:
+                        available.acquire(count);
+                        break;
+                    case BLOCK_TIMEOUT:
+                        if (!available.tryAcquire(count, blockTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                            rejected.increment();
+                            throw new IllegalStateException("CommandQueue is full.");
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        // With nothing left to drop, the capacity is held by commands
+                        // waiting for a coalescing window or a dependency: wait for them
+                        while (!available.tryAcquire(count)) {
+                            if (!dropOldest() && available.tryAcquire(count, 1, TimeUnit.MILLISECONDS)) {
+                                break;
+                            }
+                        }
+                        break;
+                    default:
+                        rejected.increment();
+                        throw new IllegalStateException("CommandQueue is full.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for room in the CommandQueue.", e);
+            }
+        }
+        highWaterMark.accumulateAndGet(capacity - available.availablePermits(), Math::max);
+        return true;
+    }
+
+    // Cancel the longest waiting queued command that holds permits. Returns false
+    // if nothing queued can be dropped.
+    private boolean dropOldest() {
+        QueuedCommand oldest;
+        synchronized (scheduler) {
+            QueuedCommand arrived;
+            while ((arrived = queue.poll()) != null) {
+                scheduler.add(arrived);
+            }
+            oldest = scheduler.removeOldest();
+        }
+        if (oldest == null) {
+            return false;
+        }
+        dropped.increment();
+        permits.release(oldest.permits);
+        CancellationException cause = new CancellationException("Dropped from the full CommandQueue.");
+        oldest.completion.completeExceptionally(cause);
+        List<DocumentCommand> commands = oldest.command instanceof DocumentBatchCommand
+            ? ((DocumentBatchCommand) oldest.command).getCommands()
+            : oldest.command instanceof DocumentCommand ? List.of((DocumentCommand) oldest.command) : List.of();
+        for (DocumentCommand command : commands) {
+            finished(command, false);
+            command.getCompletion().completeExceptionally(cause);
+        }
+        return true;
+    }
+
+    // The future completes with the command once it has run, or exceptionally if it failed
+    public CompletableFuture<Command> addCommand(Command command) {
+        if (shuttingDown) {
+            throw new IllegalStateException("CommandQueue is shutting down.");
+        }
+        if (command instanceof DocumentCommand && !((DocumentCommand) command).getDependencies().isEmpty()) {
+            submitGraph(List.of((DocumentCommand) command));
+            return ((DocumentCommand) command).getCompletion();
+        }
+        if (!admit(1, true)) {
+            return runOnCaller(command);
+        }
+        CommandJournal journaled = journal;
+        if (journaled != null && command instanceof DocumentCommand) {
+            journaled.added((DocumentCommand) command);
+        }
+        return release(command);
+    }
+
+    private CompletableFuture<Command> runOnCaller(Command command) {
+        if (command instanceof DocumentCommand) {
+            DocumentCommand document = (DocumentCommand) command;
+            document.queuedAt = System.nanoTime();
+            try {
+                document.execute();
+            } catch (RuntimeException e) {
+                // The failure is reported through the command's future
+            }
+            return document.getCompletion();
+        }
+        QueuedCommand queued = new QueuedCommand(command, 0);
+        try {
+            run(queued);
+        } catch (RuntimeException e) {
+            // The failure is reported through the returned future
+        }
+        return queued.completion;
+    }
+
+    // Queue the commands and the commands they depend on, each once its dependencies
+    // have completed. Dependencies must not be added to the queue separately. The
+    // whole graph is admitted at once; with CALLER_RUNS it waits for room instead.
+    // A graph with more commands than the capacity throws IllegalArgumentException.
+    public CommandGraph submitGraph(Collection<? extends DocumentCommand> commands) {
+        if (shuttingDown) {
+            throw new IllegalStateException("CommandQueue is shutting down.");
+        }
+        CommandGraph graph = new CommandGraph(commands);
+        admit(graph.getCommands().size(), false);
+        CommandJournal journaled = journal;
+        for (DocumentCommand command : graph.getCommands()) {
+            graphs.put(command, graph);
+            if (journaled != null) {
+                journaled.added(command);
+            }
+        }
+        graph.getReady().forEach(this::release);
+        return graph;
+    }
+
+    // Queue an admitted command, through the coalescer for document commands
+    private CompletableFuture<Command> release(Command command) {
+        if (!(command instanceof DocumentCommand)) {
+            return enqueue(command);
+        }
+        DocumentCommand document = (DocumentCommand) command;
+        document.queuedAt = System.nanoTime();
+        if (coalesceWindowNanos > 0) {
+            coalesce(document);
+        } else {
+            enqueue(document);
+        }
+        return document.getCompletion();
+    }
+
+    private CompletableFuture<Command> enqueue(Command command) {
+        return enqueue(command, command instanceof DocumentBatchCommand ? ((DocumentBatchCommand) command).size() : 1);
+    }
+
+    private CompletableFuture<Command> enqueue(Command command, int held) {
+        QueuedCommand queued = new QueuedCommand(command, held);
+        if (!queue.offer(queued)) {
+            throw new IllegalStateException("CommandQueue is full.");
+        }
+        Thread idle = idleWorkers.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle);
+        }
+        return queued.completion;
+    }
+
+    // Join the open batch for the command's document, or open one that is queued when the window closes
+    private void coalesce(DocumentCommand command) {
+        DocumentBatchCommand[] opened = new DocumentBatchCommand[1];
+        openBatches.compute(command.getDocument(), (document, batch) -> {
+            if (batch != null && batch.tryAdd(command)) {
+                return batch;
+            }
+            opened[0] = new DocumentBatchCommand(command);
+            return opened[0];
+        });
+        if (opened[0] != null) {
+            DocumentBatchCommand batch = opened[0];
+            pendingBatches.incrementAndGet();
+            timer.schedule(() -> flush(batch), coalesceWindowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush(DocumentBatchCommand batch) {
+        openBatches.remove(batch.getDocument(), batch);
+        batch.seal();
+        try {
+            enqueue(batch);
+        } catch (IllegalStateException e) {
+            // The members were admitted one permit each; fail them and return the permits
+            System.out.println("CommandQueue: Dropped batch for '" + batch.getDocument() + "': " + e.getMessage());
+            permits.release(batch.size());
+            for (DocumentCommand command : batch.getCommands()) {
+                finished(command, false);
+                command.getCompletion().completeExceptionally(e);
+            }
+        } finally {
+            pendingBatches.decrementAndGet();
+            signalIdle();
+        }
+    }
+
+    public Command getCommand() {
+        QueuedCommand queued = next();
+        return queued == null ? null : queued.command;
+    }
+
+    // Move arrivals from the ingress queue into the scheduler, then take the best
+    // command. Its permits are returned as it leaves the queue.
+    private QueuedCommand next() {
+        QueuedCommand taken;
+        synchronized (scheduler) {
+            QueuedCommand arrived;
+            while ((arrived = queue.poll()) != null) {
+                scheduler.add(arrived);
+            }
+            taken = scheduler.take();
+        }
+        if (taken != null) {
+            permits.release(taken.permits);
+        }
+        return taken;
+    }
+
+    private boolean hasQueued() {
+        return pendingBatches.get() > 0 || pendingRetries.get() > 0 || hasReady();
+    }
+
+    // Commands a worker can take right now. Batches and retries still on the
+    // timer wake a worker when they are enqueued.
+    private boolean hasReady() {
+        return !queue.isEmpty() || scheduler.size() > 0;
+    }
+
+    // Park until enqueue() or signalIdle() unparks this thread. Registering
+    // before the final check means a wake-up in between is never lost.
+    private void awaitWork() {
+        Thread self = Thread.currentThread();
+        idleWorkers.add(self);
+        if (!hasReady() && !shuttingDown) {
+            LockSupport.park(this);
+        }
+        idleWorkers.remove(self);
+    }
+
+    // Called when the queue may have become empty: wake parked workers so they
+    // can notice shutdown, and drain() so it can return.
+    private void signalIdle() {
+        idleWorkers.forEach(LockSupport::unpark);
+        synchronized (drained) {
+            drained.notifyAll();
+        }
+    }
+
+    private void leaveFlight() {
+        if (inFlight.decrementAndGet() == 0 && !hasQueued()) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    private void run(QueuedCommand queued) {
+        long startedAt = System.nanoTime();
+        try {
+            queued.command.execute();
+            queued.completion.complete(queued.command);
+        } catch (RuntimeException e) {
+            queued.completion.completeExceptionally(e);
+            throw e;
+        } finally {
+            long finishedAt = System.nanoTime();
+            latencies[queued.command.getPriority().ordinal()].record(finishedAt - queued.enqueuedAt);
+            // Document commands, including the members of a batch, are recorded as they finish
+            if (!(queued.command instanceof DocumentCommand || queued.command instanceof DocumentBatchCommand)) {
+                record(queued.command, startedAt - queued.enqueuedAt, finishedAt - startedAt);
+            }
+        }
+    }
+
+    private void record(Command command, long waitNanos, long executionNanos) {
+        CommandStats commandStats = stats.computeIfAbsent(command.getClass(), type -> new CommandStats());
+        commandStats.wait.record(waitNanos);
+        commandStats.execution.record(executionNanos);
+    }
+
+    // Queue wait and execution time per command class
+    public String commandStatsReport() {
+        StringBuilder report = new StringBuilder();
+        stats.forEach((type, commandStats) -> {
+            String name = type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+            report.append(String.format("%-22s wait: %s%n%-22s exec: %s%n",
+                name, commandStats.wait, "", commandStats.execution));
+        });
+        return report.toString();
+    }
+
+    // Time from addCommand to completion, per priority class
+    public String latencyReport() {
+        StringBuilder report = new StringBuilder();
+        for (Priority priority : Priority.values()) {
+            report.append(String.format("%-11s %s%n", priority, latencies[priority.ordinal()]));
+        }
+        return report.toString();
+    }
+
+    public void completeCommand(Command command) {
+        finished(command, true);
+    }
+
+    // Retry the command after its backoff, or move it to the dead-letter queue
+    public void failCommand(DocumentCommand document, RuntimeException cause) {
+        int attempts = document.getAttempts();
+        if (!shuttingDown && document.getRetryPolicy().shouldRetry(attempts)) {
+            long backoff = document.getRetryPolicy().backoffNanos(attempts);
+            System.out.println("CommandQueue: Command " + document.getId() + " failed (attempt " + attempts
+                + "), retrying in " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms: " + cause.getMessage());
+            record(document, document.getStartedAt() - document.getQueuedAt(),
+                document.getFinishedAt() - document.getStartedAt());
+            pendingRetries.incrementAndGet();
+            timer.schedule(() -> retry(document), backoff, TimeUnit.NANOSECONDS);
+            return;
+        }
+        deadLetter(document, cause);
+    }
+
+    private void deadLetter(DocumentCommand command, RuntimeException cause) {
+        System.out.println("CommandQueue: Command " + command.getId() + " failed: " + cause.getMessage());
+        DeadLetter deadLetter = new DeadLetter(command, cause, command.getAttempts());
+        CommandJournal journaled = journal;
+        if (journaled != null) {
+            journaled.deadLettered(deadLetter);
+        }
+        deadLetters.add(deadLetter);
+        finished(command, false);
+        command.getCompletion().completeExceptionally(cause);
+    }
+
+    // A retry has already been admitted, so it holds no permit and skips the coalescer
+    private void retry(DocumentCommand command) {
+        try {
+            command.batch = null;
+            command.queuedAt = System.nanoTime();
+            enqueue(command, 0);
+        } catch (IllegalStateException e) {
+            deadLetter(command, e);
+        } finally {
+            pendingRetries.decrementAndGet();
+            signalIdle();
+        }
+    }
+
+    public List<DeadLetter> getDeadLetters() {
+        return new ArrayList<>(deadLetters);
+    }
+
+    // Add the dead-lettered commands that match to the queue again, with fresh attempts
+    public List<CompletableFuture<Command>> replayDeadLetters(Predicate<DeadLetter> filter) {
+        List<CompletableFuture<Command>> replayed = new ArrayList<>();
+        for (DeadLetter deadLetter : deadLetters) {
+            if (filter.test(deadLetter) && deadLetters.remove(deadLetter)) {
+                deadLetter.getCommand().reset();
+                try {
+                    replayed.add(addCommand(deadLetter.getCommand()));
+                } catch (IllegalStateException e) {
+                    deadLetters.add(deadLetter);
+                    throw e;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    // Record the command's times and queue the dependents that were waiting for it
+    private void finished(Command command, boolean succeeded) {
+        CommandJournal journaled = journal;
+        if (journaled != null && command instanceof DocumentCommand) {
+            journaled.done((DocumentCommand) command);
+        }
+        if (command instanceof DocumentCommand && ((DocumentCommand) command).getStartedAt() != 0) {
+            DocumentCommand document = (DocumentCommand) command;
+            record(document, document.getStartedAt() - document.getQueuedAt(),
+                document.getFinishedAt() - document.getStartedAt());
+        }
+        CommandGraph graph = graphs.remove(command);
+        if (graph != null) {
+            graph.finished((DocumentCommand) command, succeeded).forEach(this::release);
+            if (!succeeded) {
+                graph.getCommands().stream().filter(graph::isSkipped).forEach(skipped -> {
+                    if (graphs.remove(skipped) != null) {
+                        permits.release();
+                        if (journaled != null) {
+                            journaled.done(skipped);
+                        }
+                    }
+                    skipped.getCompletion().completeExceptionally(
+                        new CancellationException("Dependency of command " + skipped.getId() + " failed."));
+                });
+            }
+        }
+    }
+
+    // Worker loop: take commands until shutdown is requested and nothing is queued.
+    // A worker counts itself in flight before polling, so that drain() never sees
+    // an empty queue and no running command while a command changes hands.
+    private void runWorker() {
+        while (true) {
+            inFlight.incrementAndGet();
+            QueuedCommand queued = next();
+            if (queued == null) {
+                leaveFlight();
+                if (shuttingDown && !hasQueued()) {
+                    return;
+                }
+                awaitWork();
+                continue;
+            }
+            try {
+                run(queued);
+            } catch (RuntimeException e) {
+                System.out.println("CommandQueue: Command " + queued.command.getId() + " failed: " + e.getMessage());
+            } finally {
+                leaveFlight();
+            }
+        }
+    }
+
+    // Wait until every queued command has been executed. The last worker to
+    // go idle on an empty queue, or the timer emptying it, wakes the caller.
+    public void drain() throws InterruptedException {
+        synchronized (drained) {
+            while (hasQueued() || inFlight.get() > 0) {
+                drained.wait();
+            }
+        }
+    }
+
+    // Stop accepting commands, let the workers finish the queued ones and stop the executor
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shuttingDown = true;
+        signalIdle();
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(timeout, unit);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    public void work() {
+        if (executor != null) {
+            try {
+                drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        while (hasQueued()) {
+            QueuedCommand queued = next();
+            if (queued != null) {
+                try {
+                    run(queued);
+                } catch (RuntimeException e) {
+                    System.out.println("CommandQueue: Command " + queued.command.getId() + " failed: " + e.getMessage());
+                }
+            } else {
+                awaitWork();
+            }
+        }
+    }
+}
+
+// Hierarchical timing wheel for delayed and recurring commands. Level 0 has
+// one slot per tick; every higher level has slots 64 times as wide, so six
+// levels of 64 slots cover 64^6 ticks (over two years at 1ms). A timer goes
+// into the lowest level whose span holds its delay and moves down a level
+// when the slot it is in comes round, until it fires from level 0. Each slot
+// is an intrusive doubly linked list of timers, so schedule and cancel are
+// O(1) and a pending timer is one small object. Due commands are handed to
+// the sink, e.g. CommandQueue::addCommand, in order on a delivery thread, so a
+// sink that blocks delays later deliveries but never the ticks themselves.
+class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 6;
+
+    // A pending timer; also the handle for cancel()
+    static final class Timeout {
+        private final Command command;
+        private final Supplier<? extends Command> factory;
+        private final long periodTicks;
+        private long deadline;
+        private int slot = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Command command, Supplier<? extends Command> factory, long deadline, long periodTicks) {
+            this.command = command;
+            this.factory = factory;
+            this.deadline = deadline;
+            this.periodTicks = periodTicks;
+        }
+
+        private Command next() {
+            return command != null ? command : factory.get();
+        }
+    }
+
+    private final Timeout[] slots = new Timeout[LEVELS * SLOTS];
+    private final Consumer<Command> sink;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Thread ticker;
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "timing-wheel-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long currentTick;
+    private int size;
+    private volatile boolean closed;
+
+    public TimingWheel(Duration tick, Consumer<Command> sink) {
+        this.tickNanos = tick.toNanos();
+        this.sink = sink;
+        this.ticker = new Thread(this::runTicker, "timing-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Hand the command to the sink once the delay has passed
+    public Timeout schedule(Command command, Duration delay) {
+        return add(new Timeout(command, null, deadline(delay), 0));
+    }
+
+    // Hand a new command from the factory to the sink after the initial delay and then every period
+    public Timeout scheduleAtFixedRate(Supplier<? extends Command> factory, Duration initialDelay, Duration period) {
+        long periodTicks = Math.max(1, period.toNanos() / tickNanos);
+        return add(new Timeout(null, factory, deadline(initialDelay), periodTicks));
+    }
+
+    // Returns false if the timer has already fired (for the last time) or was cancelled
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+        delivery.shutdown();
+    }
+
+    private long deadline(Duration delay) {
+        long now = (System.nanoTime() - startNanos) / tickNanos;
+        return now + Math.max(1, (delay.toNanos() + tickNanos - 1) / tickNanos);
+    }
+
+    private synchronized Timeout add(Timeout timeout) {
+        if (closed) {
+            throw new IllegalStateException("TimingWheel is closed.");
+        }
+        link(timeout, currentTick + 1);
+        size++;
+        return timeout;
+    }
+
+    // Link into the slot for the deadline, but no earlier than the given tick
+    private void link(Timeout timeout, long earliest) {
+        long deadline = Math.max(timeout.deadline, earliest);
+        long delta = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((deadline >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.slot = -1;
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+    // Move to the next tick: bring down the timers of every higher-level slot that
+    // starts at this tick, highest level first, then take the level 0 slot's timers.
+    // A timer due at this very tick is brought down into that level 0 slot.
+    private synchronized List<Command> advance() {
+        long tick = ++currentTick;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                Timeout timeout = slots[slot];
+                slots[slot] = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    link(timeout, tick);
+                    timeout = next;
+                }
+            }
+        }
+        int slot = (int) (tick & (SLOTS - 1));
+        Timeout timeout = slots[slot];
+        if (timeout == null) {
+            return List.of();
+        }
+        slots[slot] = null;
+        List<Command> due = new ArrayList<>();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.slot = -1;
+            timeout.previous = null;
+            timeout.next = null;
+            try {
+                due.add(timeout.next());
+            } catch (RuntimeException e) {
+                // A failing factory skips this run; a recurring timer stays scheduled
+                System.out.println("TimingWheel: Factory failed: " + e.getMessage());
+            }
+            if (timeout.periodTicks > 0) {
+                timeout.deadline += timeout.periodTicks;
+                link(timeout, tick + 1);
+            } else {
+                size--;
+            }
+            timeout = next;
+        }
+        return due;
+    }
+
+    private void runTicker() {
+        while (!closed) {
+            long target = (System.nanoTime() - startNanos) / tickNanos;
+            while (currentTick < target) {
+                List<Command> due = advance();
+                if (!due.isEmpty()) {
+                    try {
+                        delivery.execute(() -> due.forEach(this::deliver));
+                    } catch (RejectedExecutionException e) {
+                        return; // closed meanwhile
+                    }
+                }
+            }
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+    private void deliver(Command command) {
+        try {
+            sink.accept(command);
+        } catch (RuntimeException e) {
+            System.out.println("TimingWheel: Command " + command.getId() + " not delivered: " + e.getMessage());
+        }
+    }
+}
+
+// Moves items from producer threads to consumer threads through MpmcQueue,
+// ConcurrentLinkedQueue and ArrayBlockingQueue and prints the throughput of each
+class CommandQueueBenchmark {
+    private static final int ITEMS = 4_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        for (int round = 0; round < 2; round++) {
+            MpmcQueue<Integer> mpmc = new MpmcQueue<>(1024);
+            run("MpmcQueue", threads, mpmc::offer, mpmc::poll);
+            ConcurrentLinkedQueue<Integer> linked = new ConcurrentLinkedQueue<>();
+            run("ConcurrentLinkedQueue", threads, linked::offer, linked::poll);
+            ArrayBlockingQueue<Integer> blocking = new ArrayBlockingQueue<>(1024);
+            run("ArrayBlockingQueue", threads, blocking::offer, blocking::poll);
+        }
+    }
+
+    private static void run(String name, int threads, Predicate<Integer> offer, Supplier<Integer> poll)
+            throws InterruptedException {
+        int perThread = ITEMS / threads;
+        Thread[] workers = new Thread[threads * 2];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Integer item = 42;
+                for (int i = 0; i < perThread; i++) {
+                    while (!offer.test(item)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            workers[threads + t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    while (poll.get() == null) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-22s %d producers / %d consumers: %,d items/s%n",
+            name, threads, threads, (long) perThread * threads * 1_000_000_000L / elapsed);
+    }
+}
+
+// Mixed load: a large batch of conversions with interactive prints arriving
+// at the same time, on a few workers. Prints the latency per priority class.
+class PrioritySchedulingBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        CommandQueue queue = CommandQueue.getInstance();
+        queue.setCoalesceWindow(Duration.ZERO);
+        queue.start(Executors.newFixedThreadPool(4), 4);
+        for (int i = 0; i < 2_000; i++) {
+            queue.addCommand(new SimulatedCommand("batch-" + i, Priority.BATCH, 2));
+            if (i % 20 == 0) {
+                queue.addCommand(new SimulatedCommand("print-" + i, Priority.INTERACTIVE, 2));
+            }
+            if (i % 10 == 0) {
+                queue.addCommand(new SimulatedCommand("save-" + i, Priority.NORMAL, 2));
+            }
+        }
+        queue.drain();
+        System.out.print(queue.latencyReport());
+        queue.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    // A document command that only waits, standing in for IO-bound work
+    static class SimulatedCommand extends DocumentCommand {
+        private final long millis;
+
+        SimulatedCommand(String document, Priority priority, long millis) {
+            super(document);
+            this.priority = priority;
+            this.millis = millis;
+        }
+
+        @Override
+        protected void process() {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// Adds commands faster than the workers run them to a small queue, once per
+// overflow policy, and prints what happened to them
+class BackpressureBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        CommandQueue queue = CommandQueue.getInstance();
+        queue.setCoalesceWindow(Duration.ZERO);
+        queue.start(Executors.newFixedThreadPool(2), 2);
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            queue.setCapacity(100, policy, Duration.ofMillis(1));
+            long rejected = queue.getRejectedCount();
+            long dropped = queue.getDroppedCount();
+            long callerRuns = queue.getCallerRunsCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < 2_000; i++) {
+                try {
+                    queue.addCommand(new PrioritySchedulingBenchmark.SimulatedCommand("doc-" + i, Priority.NORMAL, 1));
+                } catch (IllegalStateException e) {
+                    // Counted by the queue
+                }
+            }
+            queue.drain();
+            System.out.printf("%-13s %5dms, high water %d, rejected %d, dropped %d, caller runs %d%n",
+                policy, (System.nanoTime() - start) / 1_000_000, queue.getHighWaterMark(),
+                queue.getRejectedCount() - rejected, queue.getDroppedCount() - dropped,
+                queue.getCallerRunsCount() - callerRuns);
+        }
+        queue.shutdown(10, TimeUnit.SECONDS);
+    }
+}
+
+// Schedules timers with random delays of up to an hour, cancels half of them
+// and reports the schedule and cancel rates and the heap used per timer
+class TimingWheelBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        TimingWheel wheel = new TimingWheel(Duration.ofMillis(1), command -> { });
+        Command command = new SaveDocumentCommand("Document1.pdf");
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[timers];
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        for (int i = 0; i < timers; i++) {
+            timeouts[i] = wheel.schedule(command, Duration.ofMillis(ThreadLocalRandom.current().nextLong(1, 3_600_000)));
+        }
+        long scheduled = System.nanoTime() - start;
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        start = System.nanoTime();
+        for (int i = 0; i < timers; i += 2) {
+            wheel.cancel(timeouts[i]);
+        }
+        long cancelled = System.nanoTime() - start;
+        System.out.printf("Scheduled %,d timers: %,d/s, ~%d bytes per timer%n",
+            timers, timers * 1_000_000_000L / scheduled, (heapAfter - heapBefore - 4L * timers) / timers);
+        System.out.printf("Cancelled %,d timers: %,d/s, %,d pending%n",
+            timers / 2, timers / 2 * 1_000_000_000L / cancelled, wheel.size());
+
+        // Firing: a one-shot and a recurring timer feeding the command queue
+        CommandQueue queue = CommandQueue.getInstance();
+        TimingWheel feeder = new TimingWheel(Duration.ofMillis(1), queue::addCommand);
+        feeder.schedule(new ConvertDocumentCommand("Document1.pdf"), Duration.ofMillis(50));
+        TimingWheel.Timeout polling = feeder.scheduleAtFixedRate(
+            () -> new PrintDocumentCommand("Document1.pdf"), Duration.ofMillis(10), Duration.ofMillis(30));
+        Thread.sleep(100);
+        feeder.cancel(polling);
+        queue.work();
+        feeder.close();
+        wheel.close();
+    }
+}
+
+// Journals commands from several producer threads, first with periodic and
+// then with group-commit sync, reports the rate, and recovers the commands
+// that were added but never marked done
+class CommandJournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        for (JournalSync sync : JournalSync.values()) {
+            int perThread = (sync == JournalSync.PERIODIC ? 1_000_000 : 100_000) / threads;
+            Path directory = Files.createTempDirectory("command-journal");
+            CommandJournal journal = new CommandJournal(directory, sync, Duration.ofMillis(10));
+            Thread[] producers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                producers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        DocumentCommand command = new SaveDocumentCommand("Document" + i + ".pdf");
+                        journal.added(command);
+                        if (i % 2 == 0) {
+                            journal.done(command);
+                        }
+                    }
+                });
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            journal.close();
+            System.out.printf("%-12s %d producers: %,d commands/s%n",
+                sync, threads, (long) perThread * threads * 1_000_000_000L / elapsed);
+
+            CommandJournal reopened = new CommandJournal(directory, sync, Duration.ofMillis(10));
+            System.out.printf("%-12s recovered %,d pending commands%n", sync, reopened.recover().size());
+            reopened.deleteRecovered();
+            reopened.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+}
+
+// Saves and converts a generated document and reports the throughput and how
+// much the heap grew, which should stay flat whatever the document size
+class ZeroCopyBenchmark {
+    public static void main(String[] args) throws IOException {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 256;
+        Path directory = Files.createTempDirectory("zero-copy");
+        Path document = directory.resolve("large.pdf");
+        ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+        while (block.hasRemaining()) {
+            block.put((byte) (block.position() % 96 + 32));
+        }
+        try (FileChannel out = FileChannel.open(document, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (long i = 0; i < megabytes; i++) {
+                block.clear();
+                while (block.hasRemaining()) {
+                    out.write(block);
+                }
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        DocumentCommand[] commands = {
+            new SaveDocumentCommand(document.toString(), directory.resolve("saved")),
+            new ConvertDocumentCommand(document.toString(), directory.resolve("converted"), new TextExtractor())
+        };
+        for (DocumentCommand command : commands) {
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            command.execute();
+            long elapsed = System.nanoTime() - start;
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            System.out.printf("%-22s %,d MB: %,d MB/s, heap grew by %,d KB%n", command.getClass().getSimpleName(),
+                megabytes, megabytes * 1_000_000_000L / Math.max(1, elapsed), (heapAfter - heapBefore) / 1024);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    try (DirectoryStream<Path> children = Files.newDirectoryStream(file)) {
+                        for (Path child : children) {
+                            Files.delete(child);
+                        }
+                    }
+                }
+                Files.delete(file);
+            }
         }
+        Files.delete(directory);
     }
 }
 
 // Client Code
 public class DocumentProcessingExample {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         CommandQueue queue = CommandQueue.getInstance();
+        queue.start(CommandQueue.newExecutor(args.length > 0 ? args[0] : "platform", 4), 4);
 
-        // Adding commands to the queue
-        queue.addCommand(new PrintDocumentCommand("Document1.pdf"));
-        queue.addCommand(new SaveDocumentCommand("Document1.pdf"));
-        queue.addCommand(new ConvertDocumentCommand("Document1.pdf"));
+        // Adding commands to the queue: the document is printed after it has been converted
+        DocumentCommand convert = new ConvertDocumentCommand("Document1.pdf");
+        DocumentCommand print = new PrintDocumentCommand("Document1.pdf").after(convert);
+        CommandGraph graph = queue.submitGraph(List.of(convert, print));
+        queue.addCommand(new SaveDocumentCommand("Document1.pdf").withDeadline(Duration.ofSeconds(1)))
+            .thenAccept(saved -> System.out.println("Client: Command " + saved.getId() + " completed."));
 
         // Processing the commands in the queue
         queue.work();
+        System.out.println("Document opens: " + LoadedDocument.getOpenCount() + " for 3 commands.");
+        System.out.println(graph.report());
+        System.out.print(queue.commandStatsReport());
+        queue.shutdown(10, TimeUnit.SECONDS);
     }
 }
@@ -1,49 +1,113 @@
 package RealWorldExample;
 
-import java.util.Stack;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 // Command Interface
 interface Command {
     void execute();
     void undo();
+
+    // The device the command acts on. Commands for the same receiver run in
+    // order on its lane; null means the command runs on the caller's thread.
+    default Object getReceiver() {
+        return null;
+    }
+
+    // Whether the command sets its receiver to an absolute state, so that a
+    // later coalescable command for the same receiver may replace it
+    default boolean isCoalescable() {
+        return false;
+    }
 }
 
 // Receiver: Smart Light
 class Light {
+    private volatile boolean on;
+
     public void turnOn() {
+        on = true;
         System.out.println("Light: Turned on");
     }
 
     public void turnOff() {
+        on = false;
         System.out.println("Light: Turned off");
     }
+
+    public boolean isOn() {
+        return on;
+    }
 }
 
 // Receiver: Thermostat
 class Thermostat {
+    public static final int DEFAULT_TEMPERATURE = 20;
+
+    private volatile int temperature = DEFAULT_TEMPERATURE;
+
     public void setTemperature(int temperature) {
+        this.temperature = temperature;
         System.out.printf("Thermostat: Set temperature to %d°C%n", temperature);
     }
 
     public void reset() {
+        this.temperature = DEFAULT_TEMPERATURE;
         System.out.println("Thermostat: Reset to default temperature");
     }
+
+    public int getTemperature() {
+        return temperature;
+    }
 }
 
 // Receiver: Security System
 class SecuritySystem {
+    private volatile boolean active;
+
     public void activate() {
+        active = true;
         System.out.println("SecuritySystem: Activated");
     }
 
     public void deactivate() {
+        active = false;
         System.out.println("SecuritySystem: Deactivated");
     }
+
+    public boolean isActive() {
+        return active;
+    }
 }
 
+// Concrete commands remember the state they found, skip the device if it is
+// already in the requested state, and undo only what they changed.
+
 // Concrete Command: Light On Command
 class LightOnCommand implements Command {
     private Light light;
+    private boolean wasOn;
 
     public LightOnCommand(Light light) {
         this.light = light;
@@ -51,12 +115,62 @@ class LightOnCommand implements Command {
 
     @Override
     public void execute() {
-        light.turnOn();
+        wasOn = light.isOn();
+        if (!wasOn) {
+            light.turnOn();
+        }
+    }
+
+    @Override
+    public void undo() {
+        if (!wasOn) {
+            light.turnOff();
+        }
+    }
+
+    @Override
+    public Object getReceiver() {
+        return light;
+    }
+
+    @Override
+    public boolean isCoalescable() {
+        return true;
+    }
+}
+
+// Concrete Command: Light Off Command
+class LightOffCommand implements Command {
+    private Light light;
+    private boolean wasOn;
+
+    public LightOffCommand(Light light) {
+        this.light = light;
+    }
+
+    @Override
+    public void execute() {
+        wasOn = light.isOn();
+        if (wasOn) {
+            light.turnOff();
+        }
     }
 
     @Override
     public void undo() {
-        light.turnOff();
+        if (wasOn) {
+            light.turnOn();
+        }
+    }
+
+    @Override
+    public Object getReceiver() {
+        return light;
+    }
+
+    @Override
+    public boolean isCoalescable() {
+        return true;
     }
 }
 
@@ -64,6 +178,7 @@ class LightOnCommand implements Command {
 class ThermostatSetCommand implements Command {
     private Thermostat thermostat;
     private int temperature;
+    private int previousTemperature;
 
     public ThermostatSetCommand(Thermostat thermostat, int temperature) {
         this.thermostat = thermostat;
@@ -72,18 +187,39 @@ class ThermostatSetCommand implements Command {
 
     @Override
     public void execute() {
-        thermostat.setTemperature(temperature);
+        previousTemperature = thermostat.getTemperature();
+        if (previousTemperature != temperature) {
+            thermostat.setTemperature(temperature);
+        }
     }
 
     @Override
     public void undo() {
-        thermostat.reset();
+        if (previousTemperature == temperature) {
+            return;
+        }
+        if (previousTemperature == Thermostat.DEFAULT_TEMPERATURE) {
+            thermostat.reset();
+        } else {
+            thermostat.setTemperature(previousTemperature);
+        }
+    }
+
+    @Override
+    public Object getReceiver() {
+        return thermostat;
+    }
+
+    @Override
+    public boolean isCoalescable() {
+        return true;
     }
 }
 
 // Concrete Command: Security System Activate Command
 class SecuritySystemActivateCommand implements Command {
     private SecuritySystem securitySystem;
+    private boolean wasActive;
 
     public SecuritySystemActivateCommand(SecuritySystem securitySystem) {
         this.securitySystem = securitySystem;
@@ -91,35 +227,699 @@ class SecuritySystemActivateCommand implements Command {
 
     @Override
     public void execute() {
-        securitySystem.activate();
+        wasActive = securitySystem.isActive();
+        if (!wasActive) {
+            securitySystem.activate();
+        }
     }
 
     @Override
     public void undo() {
-        securitySystem.deactivate();
+        if (!wasActive) {
+            securitySystem.deactivate();
+        }
+    }
+
+    @Override
+    public Object getReceiver() {
+        return securitySystem;
+    }
+
+    @Override
+    public boolean isCoalescable() {
+        return true;
+    }
+}
+
+// The commands for one receiver within a coalescing window. Only the last one
+// runs when the window closes, so it finds the state from before the burst and
+// its undo returns there. Undoing the burst before the window closes cancels it.
+class CoalescedCommand implements Command {
+    private enum State { PENDING, EXECUTED, CANCELLED, UNDONE }
+
+    private final Object receiver;
+    private Command current;
+    private State state = State.PENDING;
+
+    CoalescedCommand(Command first) {
+        this.receiver = first.getReceiver();
+        this.current = first;
+    }
+
+    // Replace the pending command; returns false once the window has closed
+    synchronized boolean tryReplace(Command next) {
+        if (state != State.PENDING) {
+            return false;
+        }
+        current = next;
+        return true;
+    }
+
+    // Called when the window closes
+    synchronized void flush() {
+        if (state == State.PENDING) {
+            current.execute();
+            state = State.EXECUTED;
+        }
+    }
+
+    @Override
+    public synchronized void execute() {
+        if (state == State.CANCELLED || state == State.UNDONE) {
+            current.execute();
+            state = State.EXECUTED;
+        }
+    }
+
+    @Override
+    public synchronized void undo() {
+        if (state == State.PENDING) {
+            state = State.CANCELLED;
+        } else if (state == State.EXECUTED) {
+            current.undo();
+            state = State.UNDONE;
+        }
+    }
+
+    @Override
+    public Object getReceiver() {
+        return receiver;
+    }
+}
+
+// Undo and redo history of a fixed depth. The undo side is a ring buffer that
+// overwrites the oldest command once it is full; the redo side is a stack of
+// the same depth. Both are arrays allocated up front, so recording a command
+// neither takes a lock nor allocates. Used from the controller's thread only.
+class CommandHistory {
+    private final Command[] undo;
+    private final Command[] redo;
+    private int next;
+    private int undoSize;
+    private int redoSize;
+
+    public CommandHistory(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("History depth must be at least 1.");
+        }
+        this.undo = new Command[depth];
+        this.redo = new Command[depth];
+    }
+
+    public void pushUndo(Command command) {
+        undo[next] = command;
+        next = (next + 1) % undo.length;
+        undoSize = Math.min(undoSize + 1, undo.length);
+    }
+
+    // Returns null if there is nothing to undo
+    public Command popUndo() {
+        if (undoSize == 0) {
+            return null;
+        }
+        next = (next - 1 + undo.length) % undo.length;
+        undoSize--;
+        Command command = undo[next];
+        undo[next] = null;
+        return command;
+    }
+
+    public void pushRedo(Command command) {
+        redo[redoSize++] = command;
+    }
+
+    // Returns null if there is nothing to redo
+    public Command popRedo() {
+        if (redoSize == 0) {
+            return null;
+        }
+        Command command = redo[--redoSize];
+        redo[redoSize] = null;
+        return command;
+    }
+
+    public void clearRedo() {
+        while (redoSize > 0) {
+            redo[--redoSize] = null;
+        }
+    }
+
+    public int getDepth() {
+        return undo.length;
+    }
+}
+
+// Composite Command: a scene that applies many device commands at once. The
+// commands run in parallel on the executor, or on their receivers' lanes when
+// the scene is built for a controller with an executor, so a scene takes as
+// long as its slowest device, and execute() and undo() give up waiting after
+// the timeout. Each device's outcome is kept in the results; undo() reverts
+// the commands that succeeded, including timed-out ones that succeed later,
+// which are reverted as soon as they finish.
+class MacroCommand implements Command {
+    enum Outcome { SUCCEEDED, FAILED, TIMED_OUT }
+
+    static class DeviceResult {
+        final Command command;
+        final Outcome outcome;
+        final Throwable failure;
+
+        DeviceResult(Command command, Outcome outcome, Throwable failure) {
+            this.command = command;
+            this.outcome = outcome;
+            this.failure = failure;
+        }
+
+        @Override
+        public String toString() {
+            Object receiver = command.getReceiver();
+            String device = receiver == null ? "-"
+                : receiver.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(receiver));
+            return command.getClass().getSimpleName() + " on " + device + ": " + outcome
+                + (failure != null ? " (" + failure.getMessage() + ")" : "");
+        }
+    }
+
+    private final String name;
+    private final List<Command> commands;
+    private final Function<Command, Executor> executors;
+    private final long timeoutNanos;
+    // Guarded by this: commands applied by the last execute(), and whether undo() has run since
+    private final List<Command> applied = new ArrayList<>();
+    private boolean reverted;
+    private volatile List<DeviceResult> results = List.of();
+    private volatile long elapsedNanos;
+
+    public MacroCommand(String name, List<Command> commands, Executor executor, Duration timeout) {
+        this(name, commands, (Function<Command, Executor>) command -> executor, timeout);
+    }
+
+    // Runs each command on its receiver's lane, so a scene never overlaps
+    // other commands for the same device
+    public MacroCommand(String name, List<Command> commands, HomeAutomationController controller, Duration timeout) {
+        this(name, commands, (Function<Command, Executor>) command -> controller.laneFor(command.getReceiver()), timeout);
+    }
+
+    private MacroCommand(String name, List<Command> commands, Function<Command, Executor> executors, Duration timeout) {
+        this.name = name;
+        this.commands = List.copyOf(commands);
+        this.executors = executors;
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    @Override
+    public void execute() {
+        synchronized (this) {
+            applied.clear();
+            reverted = false;
+        }
+        List<CompletableFuture<Void>> futures = fanOut(commands, Command::execute);
+        for (int i = 0; i < commands.size(); i++) {
+            Command command = commands.get(i);
+            futures.get(i).thenRun(() -> applied(command));
+        }
+    }
+
+    // A command that finishes after undo() has run, e.g. one that timed out, is undone right away
+    private void applied(Command command) {
+        synchronized (this) {
+            if (!reverted) {
+                applied.add(command);
+                return;
+            }
+        }
+        CompletableFuture.runAsync(command::undo, executors.apply(command));
+    }
+
+    @Override
+    public void undo() {
+        List<Command> targets;
+        synchronized (this) {
+            reverted = true;
+            targets = new ArrayList<>(applied);
+            applied.clear();
+        }
+        fanOut(targets, Command::undo);
+    }
+
+    private List<CompletableFuture<Void>> fanOut(List<Command> targets, Consumer<Command> action) {
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(targets.size());
+        for (Command command : targets) {
+            futures.add(CompletableFuture.runAsync(() -> action.accept(command), executors.apply(command)));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Reported per device below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<DeviceResult> outcomes = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            CompletableFuture<Void> future = futures.get(i);
+            if (!future.isDone()) {
+                outcomes.add(new DeviceResult(targets.get(i), Outcome.TIMED_OUT, null));
+            } else if (future.isCompletedExceptionally()) {
+                Throwable failure = future.handle((ignored, e) -> e instanceof CompletionException ? e.getCause() : e).join();
+                outcomes.add(new DeviceResult(targets.get(i), Outcome.FAILED, failure));
+            } else {
+                outcomes.add(new DeviceResult(targets.get(i), Outcome.SUCCEEDED, null));
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        results = outcomes;
+        return futures;
+    }
+
+    // Outcome per device of the last execute() or undo()
+    public List<DeviceResult> getResults() {
+        return results;
+    }
+
+    public String getReport() {
+        int[] counts = new int[Outcome.values().length];
+        StringBuilder problems = new StringBuilder();
+        for (DeviceResult result : results) {
+            counts[result.outcome.ordinal()]++;
+            if (result.outcome != Outcome.SUCCEEDED) {
+                problems.append(System.lineSeparator()).append("  ").append(result);
+            }
+        }
+        return String.format("Scene '%s': %d succeeded, %d failed, %d timed out in %dms", name,
+            counts[Outcome.SUCCEEDED.ordinal()], counts[Outcome.FAILED.ordinal()],
+            counts[Outcome.TIMED_OUT.ordinal()], elapsedNanos / 1_000_000) + problems;
+    }
+}
+
+// Mailbox for one receiver's commands. Its tasks run one at a time and in
+// order on a shared executor, and the lane holds a thread only while it has
+// work, so thousands of devices need no more threads than the pool has. A
+// lane gives its thread back after a batch of tasks so busy devices do not
+// starve the others. Failed tasks, and tasks the executor refuses to run,
+// go to the failure handler; onIdle is called whenever the lane runs dry.
+class DeviceLane {
+    private static final int BATCH = 64;
+
+    private final Object receiver;
+    private final Executor executor;
+    private final BiConsumer<Object, RuntimeException> onFailure;
+    private final Consumer<DeviceLane> onIdle;
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger unfinished = new AtomicInteger();
+
+    DeviceLane(Object receiver, Executor executor, BiConsumer<Object, RuntimeException> onFailure,
+               Consumer<DeviceLane> onIdle) {
+        this.receiver = receiver;
+        this.executor = executor;
+        this.onFailure = onFailure;
+        this.onIdle = onIdle;
+    }
+
+    // Queue a task; call start() afterwards to make sure the lane is running
+    void submit(Runnable task) {
+        unfinished.incrementAndGet();
+        mailbox.offer(task);
+    }
+
+    void start() {
+        if (scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    // Called with `scheduled` set. If the executor refuses (e.g. it has been shut
+    // down) nothing would ever run the queued tasks, so fail them and clear the flag
+    private void schedule() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            do {
+                Runnable task;
+                while ((task = mailbox.poll()) != null) {
+                    finish(e);
+                }
+                scheduled.set(false);
+                // Tasks offered meanwhile saw the lane scheduled and would be stranded
+            } while (!mailbox.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable task = mailbox.poll();
+            if (task == null) {
+                break;
+            }
+            RuntimeException failure = null;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            finish(failure);
+        }
+        scheduled.set(false);
+        // A task offered after the last poll found the lane still scheduled, so reschedule for it
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void finish(RuntimeException failure) {
+        if (failure != null) {
+            try {
+                onFailure.accept(receiver, failure);
+            } catch (RuntimeException e) {
+                // The handler's own failure must not stop the lane
+            }
+        }
+        if (unfinished.decrementAndGet() == 0) {
+            onIdle.accept(this);
+        }
+    }
+
+    Object getReceiver() {
+        return receiver;
+    }
+
+    boolean isIdle() {
+        return unfinished.get() == 0;
     }
 }
 
 // Invoker: Home Automation Controller
+// With an executor, each receiver's commands (and their undos) run in order on
+// that receiver's lane while different receivers run in parallel; without one
+// they run on the caller's thread. A lane exists only while its receiver has
+// commands queued, and failures on a lane are passed to the failure handler,
+// which by default keeps the most recent ones for getFailures(). With a
+// coalescing window, a coalescable command for a receiver is held for the window
+// and replaced by any later one for the same receiver, so a burst from an
+// automation rule reaches the device once. The burst is one entry in the history.
 class HomeAutomationController {
-    private Stack<Command> commandHistory = new Stack<>();
+    private static final int DEFAULT_HISTORY_DEPTH = 64;
+    private static final int MAX_KEPT_FAILURES = 100;
+
+    private final CommandHistory commandHistory;
+    private final long coalesceWindowNanos;
+    private final ConcurrentHashMap<Object, CoalescedCommand> pending = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, DeviceLane> lanes = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<RuntimeException> failures = new ArrayBlockingQueue<>(MAX_KEPT_FAILURES);
+    private volatile BiConsumer<Object, RuntimeException> failureHandler = (receiver, failure) -> keep(failure);
+    // Notified whenever a lane runs dry or a burst is flushed
+    private final Object idle = new Object();
+    private ScheduledExecutorService timer;
+
+    public HomeAutomationController() {
+        this(DEFAULT_HISTORY_DEPTH);
+    }
+
+    // Only the last historyDepth commands can be undone
+    public HomeAutomationController(int historyDepth) {
+        this(historyDepth, Duration.ZERO);
+    }
+
+    public HomeAutomationController(int historyDepth, Duration coalesceWindow) {
+        this(historyDepth, coalesceWindow, null);
+    }
+
+    public HomeAutomationController(int historyDepth, Duration coalesceWindow, Executor executor) {
+        this.commandHistory = new CommandHistory(historyDepth);
+        this.coalesceWindowNanos = coalesceWindow.toNanos();
+        this.executor = executor;
+    }
 
     public void executeCommand(Command command) {
-        command.execute();
-        commandHistory.push(command);
+        Object receiver = command.getReceiver();
+        if (coalesceWindowNanos > 0 && receiver != null && command.isCoalescable()) {
+            coalesce(receiver, command);
+            return;
+        }
+        dispatch(receiver, command::execute);
+        commandHistory.pushUndo(command);
+        commandHistory.clearRedo();
+    }
+
+    // Called with the receiver and the exception of every command that fails on a lane
+    public void setFailureHandler(BiConsumer<Object, RuntimeException> handler) {
+        this.failureHandler = handler;
+    }
+
+    // The most recent failures kept by the default failure handler
+    public List<RuntimeException> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    // Keep the failure, dropping the oldest once MAX_KEPT_FAILURES are kept
+    private void keep(RuntimeException failure) {
+        while (!failures.offer(failure)) {
+            failures.poll();
+        }
+    }
+
+    // Run on the receiver's lane, or right here without an executor or receiver.
+    // Queueing inside compute() keeps it atomic with removeIfIdle(); the lane is
+    // started outside, since a rejected start ends in removeIfIdle() itself.
+    private void dispatch(Object receiver, Runnable action) {
+        if (executor == null || receiver == null) {
+            action.run();
+            return;
+        }
+        DeviceLane[] target = new DeviceLane[1];
+        lanes.compute(receiver, (device, lane) -> {
+            target[0] = lane != null ? lane
+                : new DeviceLane(device, executor, (d, e) -> failureHandler.accept(d, e), this::removeIfIdle);
+            target[0].submit(action);
+            return target[0];
+        });
+        target[0].start();
+    }
+
+    // Runs tasks on the receiver's lane, or on the calling thread without an executor
+    Executor laneFor(Object receiver) {
+        return task -> dispatch(receiver, task);
+    }
+
+    private void removeIfIdle(DeviceLane lane) {
+        lanes.computeIfPresent(lane.getReceiver(), (device, current) -> current == lane && lane.isIdle() ? null : current);
+        signalIdle();
+    }
+
+    private void signalIdle() {
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+    }
+
+    // Wait until pending bursts have been flushed and every lane has run its commands
+    public boolean awaitIdle(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (idle) {
+            while (!pending.isEmpty() || !lanes.values().stream().allMatch(DeviceLane::isIdle)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+            }
+        }
+        return true;
+    }
+
+    private void coalesce(Object receiver, Command command) {
+        CoalescedCommand[] opened = new CoalescedCommand[1];
+        pending.compute(receiver, (device, burst) -> {
+            if (burst != null && burst.tryReplace(command)) {
+                coalesced.increment();
+                return burst;
+            }
+            opened[0] = new CoalescedCommand(command);
+            return opened[0];
+        });
+        if (opened[0] != null) {
+            CoalescedCommand burst = opened[0];
+            commandHistory.pushUndo(burst);
+            commandHistory.clearRedo();
+            timer().schedule(() -> {
+                dispatch(receiver, burst::flush);
+                pending.remove(receiver, burst);
+                signalIdle();
+            }, coalesceWindowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "home-automation-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    // Commands that were replaced by a later one for the same receiver and never reached the device
+    public long getCoalescedCount() {
+        return coalesced.sum();
     }
 
     public void undoLastCommand() {
-        if (!commandHistory.isEmpty()) {
-            Command lastCommand = commandHistory.pop();
-            lastCommand.undo();
+        Command lastCommand = commandHistory.popUndo();
+        if (lastCommand != null) {
+            dispatch(lastCommand.getReceiver(), lastCommand::undo);
+            commandHistory.pushRedo(lastCommand);
+        }
+    }
+
+    public void redoLastCommand() {
+        Command undoneCommand = commandHistory.popRedo();
+        if (undoneCommand != null) {
+            dispatch(undoneCommand.getReceiver(), undoneCommand::execute);
+            commandHistory.pushUndo(undoneCommand);
         }
     }
 }
 
+// Sends a sequence of slow commands to each of thousands of devices through
+// device lanes on a small pool, checks that every device saw its commands in
+// order, and measures how long a light waits while the security system is busy
+class DeviceLaneBenchmark {
+    // A command that takes `millis` on its device and records the order it ran in
+    static class SlowCommand implements Command {
+        private final Object device;
+        private final int[] log;
+        private final AtomicInteger position;
+        private final int sequence;
+        private final long millis;
+
+        SlowCommand(Object device, int[] log, AtomicInteger position, int sequence, long millis) {
+            this.device = device;
+            this.log = log;
+            this.position = position;
+            this.sequence = sequence;
+            this.millis = millis;
+        }
+
+        @Override
+        public void execute() {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            log[position.getAndIncrement()] = sequence;
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public Object getReceiver() {
+            return device;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int perDevice = 5;
+        ExecutorService pool = Executors.newFixedThreadPool(64);
+        HomeAutomationController controller = new HomeAutomationController(64, Duration.ZERO, pool);
+        int[][] logs = new int[devices][perDevice];
+        AtomicInteger[] positions = new AtomicInteger[devices];
+        Object[] receivers = new Object[devices];
+        for (int d = 0; d < devices; d++) {
+            positions[d] = new AtomicInteger();
+            receivers[d] = new Light();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < perDevice; i++) {
+            for (int d = 0; d < devices; d++) {
+                controller.executeCommand(new SlowCommand(receivers[d], logs[d], positions[d], i, 1));
+            }
+        }
+        controller.awaitIdle(Duration.ofMinutes(1));
+        long elapsed = System.nanoTime() - start;
+        int outOfOrder = 0;
+        for (int[] log : logs) {
+            for (int i = 0; i < perDevice; i++) {
+                outOfOrder += log[i] == i ? 0 : 1;
+            }
+        }
+        System.out.printf("%,d devices x %d commands of 1ms on 64 threads: %dms (%,dms one after another), %d out of order%n",
+            devices, perDevice, elapsed / 1_000_000, (long) devices * perDevice, outOfOrder);
+
+        SecuritySystem securitySystem = new SecuritySystem();
+        Light light = new Light();
+        controller.executeCommand(new SlowCommand(securitySystem, new int[1], new AtomicInteger(), 0, 500));
+        long lightStart = System.nanoTime();
+        controller.executeCommand(new LightOnCommand(light));
+        while (!light.isOn()) {
+            Thread.sleep(1);
+        }
+        System.out.printf("Light turned on %dms after a 500ms security activation was started%n",
+            (System.nanoTime() - lightStart) / 1_000_000);
+        controller.awaitIdle(Duration.ofSeconds(5));
+        pool.shutdown();
+    }
+}
+
+// Applies a scene to hundreds of devices with different latencies, one of
+// which fails and one of which hangs, then undoes it
+class SceneBenchmark {
+    static class UnresponsiveThermostatCommand implements Command {
+        private final Thermostat thermostat;
+
+        UnresponsiveThermostatCommand(Thermostat thermostat) {
+            this.thermostat = thermostat;
+        }
+
+        @Override
+        public void execute() {
+            throw new IllegalStateException("Thermostat not responding");
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public Object getReceiver() {
+            return thermostat;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(devices, 256));
+        List<Command> commands = new ArrayList<>();
+        long sum = 0;
+        for (int d = 0; d < devices; d++) {
+            long millis = ThreadLocalRandom.current().nextLong(1, 50);
+            sum += millis;
+            commands.add(new DeviceLaneBenchmark.SlowCommand(new Light(), new int[2], new AtomicInteger(), 0, millis));
+        }
+        commands.add(new DeviceLaneBenchmark.SlowCommand(new SecuritySystem(), new int[2], new AtomicInteger(), 0, 5_000));
+        commands.add(new UnresponsiveThermostatCommand(new Thermostat()));
+        HomeAutomationController controller = new HomeAutomationController(64, Duration.ZERO, pool);
+        MacroCommand scene = new MacroCommand("Evening", commands, controller, Duration.ofMillis(200));
+        controller.executeCommand(scene);
+        System.out.println(scene.getReport());
+        System.out.printf("One device after another would take at least %dms%n", sum);
+        controller.undoLastCommand();
+        System.out.println(scene.getReport());
+        pool.shutdownNow();
+    }
+}
+
 // Client Code
 public class HomeAutomationExample {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // Receivers
         Light light = new Light();
         Thermostat thermostat = new Thermostat();
@@ -146,5 +946,33 @@ public class HomeAutomationExample {
 
         System.out.println("\n--- Undo Last Command ---");
         controller.undoLastCommand(); // Turn off the light
+
+        System.out.println("\n--- Redo Command ---");
+        controller.redoLastCommand(); // Turn on the light again
+
+        System.out.println("\n--- Rule Storm ---");
+        HomeAutomationController coalescing = new HomeAutomationController(64, Duration.ofMillis(50));
+        coalescing.executeCommand(new ThermostatSetCommand(thermostat, 22));
+        coalescing.executeCommand(new ThermostatSetCommand(thermostat, 23));
+        coalescing.executeCommand(new ThermostatSetCommand(thermostat, 21)); // Only 21°C reaches the thermostat
+        coalescing.executeCommand(new LightOffCommand(light));
+        coalescing.executeCommand(new LightOnCommand(light));               // The light is already on: no-op
+        Thread.sleep(100);
+        System.out.println("Coalesced commands: " + coalescing.getCoalescedCount());
+        coalescing.undoLastCommand(); // Nothing to undo for the light
+        coalescing.undoLastCommand(); // Back to the default temperature
+
+        System.out.println("\n--- Scene ---");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        MacroCommand evening = new MacroCommand("Evening", List.of(
+            new LightOnCommand(new Light()),
+            new LightOnCommand(new Light()),
+            new ThermostatSetCommand(thermostat, 19),
+            new SecuritySystemActivateCommand(securitySystem)), pool, Duration.ofSeconds(1));
+        controller.executeCommand(evening);
+        System.out.println(evening.getReport());
+        controller.undoLastCommand();
+        System.out.println(evening.getReport());
+        pool.shutdown();
     }
 }
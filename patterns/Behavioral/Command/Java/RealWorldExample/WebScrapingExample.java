@@ -5,7 +5,9 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -156,6 +158,11 @@ interface Command extends Serializable {
     class Queue {
         private static Queue instance;
         private final Connection db;
+        // Prepared once per SQL text and reused, instead of re-parsed on every call.
+        // The queue only issues four fixed statements, so the cache needs no bound.
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long statementHits;
+        private long statementMisses;
     
         private Queue() {
             try {
@@ -178,10 +185,43 @@ interface Command extends Serializable {
             return instance;
         }
     
+        private PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statementMisses++;
+                statement = db.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statementHits++;
+            }
+            return statement;
+        }
+    
+        public long getStatementHits() {
+            return statementHits;
+        }
+    
+        public long getStatementMisses() {
+            return statementMisses;
+        }
+    
+        // Close the cached statements and the connection; the next getInstance() reopens them
+        public void close() {
+            try {
+                for (PreparedStatement statement : statements.values()) {
+                    statement.close();
+                }
+                statements.clear();
+                db.close();
+            } catch (SQLException e) {
+                throw new RuntimeException("Failed to close queue", e);
+            } finally {
+                instance = null;
+            }
+        }
+    
         public boolean isEmpty() {
-            try (PreparedStatement statement = db.prepareStatement(
-                "SELECT COUNT(id) FROM commands WHERE status = 0")) {
-                ResultSet resultSet = statement.executeQuery();
+            try (ResultSet resultSet = prepare("SELECT COUNT(id) FROM commands WHERE status = 0").executeQuery()) {
                 return resultSet.next() && resultSet.getInt(1) == 0;
             } catch (SQLException e) {
                 throw new RuntimeException("Failed to check queue status", e);
@@ -189,9 +229,8 @@ interface Command extends Serializable {
         }
     
         public void add(Command command) {
-            try (PreparedStatement statement = db.prepareStatement(
-                    "INSERT INTO commands (command, status) VALUES (?, ?)"
-                )) {
+            try {
+                PreparedStatement statement = prepare("INSERT INTO commands (command, status) VALUES (?, ?)");
                 ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
                 ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
                 objectStream.writeObject(command);
@@ -205,10 +244,7 @@ interface Command extends Serializable {
         }
     
         public Command getCommand() {
-            try (PreparedStatement statement = db.prepareStatement(
-                "SELECT * FROM commands WHERE status = 0 LIMIT 1")) {
-                ResultSet resultSet = statement.executeQuery();
-    
+            try (ResultSet resultSet = prepare("SELECT * FROM commands WHERE status = 0 LIMIT 1").executeQuery()) {
                 if (resultSet.next()) {
                     int id = resultSet.getInt("id");
                     byte[] commandBytes = resultSet.getBytes("command");
@@ -226,9 +262,8 @@ interface Command extends Serializable {
     }
 
     public void completeCommand(Command command) {
-        try (PreparedStatement statement = db.prepareStatement(
-        "UPDATE commands SET status = ? WHERE id = ?"
-        )) {
+        try {
+            PreparedStatement statement = prepare("UPDATE commands SET status = ? WHERE id = ?");
             statement.setInt(1, command.getStatus());
             statement.setInt(2, command.getId());
             statement.executeUpdate();
@@ -250,9 +285,15 @@ interface Command extends Serializable {
 public class WebScrapingExample {
     public static void main(String[] args) {
         Queue queue = Queue.getInstance();
-        if (queue.isEmpty()) {
-            queue.add(new IMDBGenresScrapingCommand());
+        try {
+            if (queue.isEmpty()) {
+                queue.add(new IMDBGenresScrapingCommand());
+            }
+            queue.work();
+            System.out.println("Queue: " + queue.getStatementHits() + " statement cache hits, "
+                + queue.getStatementMisses() + " misses.");
+        } finally {
+            queue.close();
         }
-        queue.work();
     }
 }
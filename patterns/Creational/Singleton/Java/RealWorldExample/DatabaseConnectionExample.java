@@ -20,7 +20,18 @@ package patterns.Creational.Singleton.Java.RealWorldExample;
 |    only one instance of the database connection is created.
 | 2. **Static Instance Storage**: Ensures that the same instance of the 
 |    database connection is used throughout the application.
-| 3. **Client Code**: Demonstrates using the Singleton to retrieve the 
+| 3. **ConnectionPool Class**: A bounded JDBC pool with fair acquisition, 
+|    validation on borrow, idle eviction, a maximum connection lifetime and 
+|    leak detection. The singleton owns the one pool of the application.
+| 4. **StatementCache Class**: A per-connection LRU cache of prepared 
+|    statements keyed by SQL text, so repeated statements are parsed once.
+| 5. **ReplicaRouter Class**: Sends read-only work to replica pools, picked 
+|    round-robin or least-loaded, while writes go to the primary. A Session 
+|    can keep reading from the primary for a short while after it writes.
+| 6. **Pool Metrics**: Acquire-wait and usage histograms, gauges and 
+|    timeout counts, exported as an MXBean per pool, plus a JFR event for 
+|    every acquisition that waits longer than a threshold.
+| 7. **Client Code**: Demonstrates using the Singleton to retrieve the 
 |    database connection, ensuring that only one connection instance exists.
 |
 | Use Case:
@@ -29,8 +40,40 @@ package patterns.Creational.Singleton.Java.RealWorldExample;
 | connection instance, optimizing resource management.
 */
 
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 /**
  * The Singleton class defines the `getInstance` method that serves as an
@@ -44,7 +87,7 @@ class Singleton {
      * this map will be the class name, and the value will be an instance of
      * that specific Singleton subclass.
      */
-    private static Map<String, Singleton> instances = new HashMap<>();
+    private static Map<String, Singleton> instances = new ConcurrentHashMap<>();
 
     /**
      * The Singleton's constructor should always be protected to prevent direct
@@ -74,39 +117,827 @@ class Singleton {
      * object stored in the map.
      *
      * This implementation lets you subclass the Singleton class while keeping
-     * just one instance of each subclass around.
+     * just one instance of each subclass around. The lookup is lock-free once
+     * the instance exists; creation is serialized so that concurrent first
+     * calls cannot construct two instances.
      */
     public static <T extends Singleton> T getInstance(Class<T> cls) {
         String clsName = cls.getName();
-        if (!instances.containsKey(clsName)) {
+        Singleton instance = instances.get(clsName);
+        if (instance == null) {
+            synchronized (instances) {
+                instance = instances.get(clsName);
+                if (instance == null) {
+                    try {
+                        instance = cls.getDeclaredConstructor().newInstance();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to create singleton instance.", e);
+                    }
+                    instances.put(clsName, instance);
+                }
+            }
+        }
+        return cls.cast(instance);
+    }
+}
+
+/**
+ * Pool settings, read from system properties so that the same code runs
+ * against any JDBC driver on the classpath.
+ */
+class PoolSettings {
+    String url = System.getProperty("db.url", "jdbc:sqlite:application.sqlite");
+    int maxSize = Integer.getInteger("db.pool.maxSize", 8);
+    long acquireTimeoutMillis = Long.getLong("db.pool.acquireTimeoutMillis", 30_000L);
+    long idleTimeoutMillis = Long.getLong("db.pool.idleTimeoutMillis", 600_000L);
+    long maxLifetimeMillis = Long.getLong("db.pool.maxLifetimeMillis", 1_800_000L);
+    /**
+     * Leak tracking records the borrower's stack on every acquire; 0 disables it.
+     */
+    long leakThresholdMillis = Long.getLong("db.pool.leakThresholdMillis", 60_000L);
+    long validationTimeoutSeconds = Long.getLong("db.pool.validationTimeoutSeconds", 5L);
+    long housekeepingMillis = Long.getLong("db.pool.housekeepingMillis", 30_000L);
+    int statementCacheSize = Integer.getInteger("db.pool.statementCacheSize", 64);
+    long slowAcquireMillis = Long.getLong("db.pool.slowAcquireMillis", 50L);
+}
+
+/**
+ * A latency histogram with power-of-two microsecond buckets. Recording is a
+ * couple of LongAdder increments, so it can sit on the acquire path; the
+ * percentiles it reports are the upper bound of the bucket they fall into.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        count.increment();
+        if (micros > max.get()) {
+            max.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    long percentileMicros(double percentile) {
+        long target = (long) Math.ceil(percentile / 100 * count.sum());
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target && seen > 0) {
+                return i == 0 ? 0 : Math.min(1L << i, max.get());
+            }
+        }
+        return max.get();
+    }
+}
+
+/**
+ * JFR event emitted when a thread waits longer than `db.pool.slowAcquireMillis`
+ * for a connection, including waits that end in a timeout.
+ */
+@Name("patterns.ConnectionAcquire")
+@Label("Slow Connection Acquire")
+@Category("Database")
+@Description("A thread waited longer than the threshold for a pooled connection")
+class ConnectionAcquireEvent extends Event {
+    @Label("Pool")
+    String pool;
+
+    @Label("Wait (us)")
+    long waitMicros;
+
+    @Label("Timed Out")
+    boolean timedOut;
+
+    @Label("Pending Threads")
+    int pending;
+}
+
+/**
+ * Hit, miss and eviction counters shared by the statement caches of a pool.
+ */
+class StatementCacheStats {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, hit rate=%.1f%%",
+            hits.sum(), misses.sum(), evictions.sum(), hitRate() * 100);
+    }
+}
+
+/**
+ * An LRU cache of prepared statements for one physical connection, keyed by
+ * SQL text. A connection is only used by the thread that borrowed it, so the
+ * cache needs no locking.
+ *
+ * Clients get a proxy whose `close` clears the parameters and puts the
+ * statement back instead of closing it. A statement that is still open when
+ * the same SQL is prepared again is not shared; the second caller gets an
+ * uncached statement. An evicted statement that is still in use is closed
+ * when its client closes it.
+ */
+class StatementCache {
+    private final int capacity;
+    private final StatementCacheStats stats;
+    private final LinkedHashMap<String, CachedStatement> entries;
+
+    StatementCache(int capacity, StatementCacheStats stats) {
+        this.capacity = capacity;
+        this.stats = stats;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    PreparedStatement prepare(Connection physical, Connection owner, String sql) throws SQLException {
+        CachedStatement cached = entries.get(sql);
+        if (cached != null && !cached.inUse) {
+            stats.hits.increment();
+        } else if (cached != null) {
+            stats.misses.increment();
+            return physical.prepareStatement(sql);
+        } else {
+            stats.misses.increment();
+            cached = new CachedStatement(physical.prepareStatement(sql));
+            entries.put(sql, cached);
+            evictOverflow();
+        }
+        cached.inUse = true;
+        return cached.lend(owner);
+    }
+
+    private void evictOverflow() {
+        Iterator<CachedStatement> eldest = entries.values().iterator();
+        while (entries.size() > capacity && eldest.hasNext()) {
+            CachedStatement victim = eldest.next();
+            eldest.remove();
+            stats.evictions.increment();
+            victim.evicted = true;
+            if (!victim.inUse) {
+                victim.closeQuietly();
+            }
+        }
+    }
+}
+
+/**
+ * A cached physical statement and the proxies lent out for it.
+ */
+class CachedStatement {
+    final PreparedStatement physical;
+    boolean inUse;
+    boolean evicted;
+
+    CachedStatement(PreparedStatement physical) {
+        this.physical = physical;
+    }
+
+    PreparedStatement lend(Connection owner) {
+        AtomicBoolean closed = new AtomicBoolean();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (closed.compareAndSet(false, true)) {
+                            giveBack();
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed.get();
+                    case "getConnection":
+                        return owner;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (closed.get()) {
+                            throw new SQLException("Statement is closed.");
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            });
+    }
+
+    private void giveBack() throws SQLException {
+        inUse = false;
+        if (evicted) {
+            closeQuietly();
+        } else {
+            physical.clearParameters();
+        }
+    }
+
+    void closeQuietly() {
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            System.err.println("StatementCache: failed to close statement: " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * A physical connection owned by the pool, together with the bookkeeping
+ * needed for eviction and leak detection.
+ */
+class PooledConnection {
+    final Connection physical;
+    final StatementCache statements;
+    final long createdAt = System.nanoTime();
+    volatile long lastReturnedAt = createdAt;
+    volatile long borrowedAt;
+    volatile Throwable borrowStack;
+    volatile boolean leakReported;
+
+    PooledConnection(Connection physical, StatementCache statements) {
+        this.physical = physical;
+        this.statements = statements;
+    }
+}
+
+/**
+ * A bounded connection pool.
+ *
+ * A fair semaphore limits the number of borrowed connections and hands them
+ * out in arrival order, with a timeout. Idle connections are kept in a LIFO
+ * deque so that the most recently used (and most likely still alive) one is
+ * reused first; connections that have been idle for a while are validated
+ * before they are handed out. A housekeeping thread closes connections that
+ * have been idle for too long or outlived their maximum lifetime, and reports
+ * borrowed connections held past the leak threshold together with the stack
+ * of the code that borrowed them. A threshold of 0 disables leak tracking, and
+ * with it the stack capture on every borrow.
+ *
+ * Clients receive a proxy; closing it returns the connection to the pool.
+ * `prepareStatement(String)` on the proxy is served from the connection's
+ * statement cache.
+ */
+class ConnectionPool implements DatabaseConnectionExample.ConnectionPoolMXBean {
+    private static final long VALIDATION_SKIP_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private final PoolSettings settings;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private final StatementCacheStats statementStats = new StatementCacheStats();
+    private final LatencyHistogram acquireWait = new LatencyHistogram();
+    private final LatencyHistogram usage = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+
+    ConnectionPool(PoolSettings settings) {
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep,
+            settings.housekeepingMillis, settings.housekeepingMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection, waiting at most the acquire timeout for one to
+     * become available.
+     */
+    public Connection acquire() throws SQLException {
+        return acquire(null);
+    }
+
+    /**
+     * Borrow a connection and run `onRelease` when the client closes it.
+     */
+    public Connection acquire(Runnable onRelease) throws SQLException {
+        // One timed call: the untimed tryAcquire() would barge ahead of
+        // threads already queued on the fair semaphore.
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(settings.acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                recordWait(start, true);
+                throw new SQLTimeoutException("Timed out after " + settings.acquireTimeoutMillis
+                    + " ms waiting for a connection.");
+            }
+            recordWait(start, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.", e);
+        }
+
+        try {
+            PooledConnection connection = takeIdle();
+            if (connection == null) {
+                connection = new PooledConnection(DriverManager.getConnection(settings.url),
+                    new StatementCache(settings.statementCacheSize, statementStats));
+            }
+            connection.borrowedAt = System.nanoTime();
+            connection.borrowStack = settings.leakThresholdMillis > 0
+                ? new Throwable("Connection borrowed here")
+                : null;
+            connection.leakReported = false;
+            borrowed.add(connection);
+            return wrap(connection, onRelease);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void recordWait(long start, boolean timedOut) {
+        long waited = System.nanoTime() - start;
+        acquireWait.record(waited);
+        if (waited > TimeUnit.MILLISECONDS.toNanos(settings.slowAcquireMillis)) {
+            ConnectionAcquireEvent event = new ConnectionAcquireEvent();
+            if (event.shouldCommit()) {
+                event.pool = settings.url;
+                event.waitMicros = waited / 1000;
+                event.timedOut = timedOut;
+                event.pending = permits.getQueueLength();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Pop idle connections until one is within its lifetime and, if it has
+     * been idle for a while, still valid.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            long now = System.nanoTime();
+            if (expired(connection, now)) {
+                closePhysical(connection);
+            } else if (now - connection.lastReturnedAt > VALIDATION_SKIP_NANOS && !isValid(connection)) {
+                closePhysical(connection);
+            } else {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            return connection.physical.isValid((int) settings.validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean expired(PooledConnection connection, long now) {
+        return now - connection.createdAt > TimeUnit.MILLISECONDS.toNanos(settings.maxLifetimeMillis);
+    }
+
+    /**
+     * Take a connection back from a client. Broken or expired connections are
+     * closed; others are reset to auto-commit and put on top of the idle deque.
+     */
+    void release(PooledConnection connection) {
+        usage.record(System.nanoTime() - connection.borrowedAt);
+        borrowed.remove(connection);
+        connection.borrowStack = null;
+        try {
+            if (connection.physical.isClosed() || expired(connection, System.nanoTime())) {
+                closePhysical(connection);
+            } else {
+                if (!connection.physical.getAutoCommit()) {
+                    connection.physical.rollback();
+                    connection.physical.setAutoCommit(true);
+                }
+                connection.lastReturnedAt = System.nanoTime();
+                idle.offerFirst(connection);
+            }
+        } catch (SQLException e) {
+            closePhysical(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Hand out a proxy for the borrowed connection. `close` returns the
+     * connection to the pool once; any use after that fails.
+     */
+    private Connection wrap(PooledConnection connection, Runnable onRelease) {
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (closed.compareAndSet(false, true)) {
+                            release(connection);
+                            if (onRelease != null) {
+                                onRelease.run();
+                            }
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed.get();
+                    case "toString":
+                        return "Pooled(" + connection.physical + ")";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (closed.get()) {
+                            throw new SQLException("Connection is closed.");
+                        }
+                        if (method.getName().equals("prepareStatement") && args.length == 1
+                                && settings.statementCacheSize > 0) {
+                            return connection.statements.prepare(connection.physical, (Connection) proxy, (String) args[0]);
+                        }
+                        try {
+                            return method.invoke(connection.physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            });
+    }
+
+    /**
+     * Evict idle connections past the idle timeout or the maximum lifetime and
+     * report borrowed connections held past the leak threshold.
+     */
+    private void housekeep() {
+        long now = System.nanoTime();
+        long idleTimeout = TimeUnit.MILLISECONDS.toNanos(settings.idleTimeoutMillis);
+        for (PooledConnection connection : idle) {
+            if ((now - connection.lastReturnedAt > idleTimeout || expired(connection, now))
+                    && idle.remove(connection)) {
+                closePhysical(connection);
+            }
+        }
+
+        long leakThreshold = TimeUnit.MILLISECONDS.toNanos(settings.leakThresholdMillis);
+        for (PooledConnection connection : borrowed) {
+            Throwable stack = connection.borrowStack;
+            if (stack != null && !connection.leakReported && now - connection.borrowedAt > leakThreshold) {
+                connection.leakReported = true;
+                System.err.println("ConnectionPool: connection held for more than "
+                    + settings.leakThresholdMillis + " ms, possible leak.");
+                stack.printStackTrace();
+            }
+        }
+    }
+
+    private void closePhysical(PooledConnection connection) {
+        try {
+            connection.physical.close();
+        } catch (SQLException e) {
+            System.err.println("ConnectionPool: failed to close connection: " + e.getMessage());
+        }
+    }
+
+    public StatementCacheStats getStatementCacheStats() {
+        return statementStats;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return borrowed.size();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    @Override
+    public int getPendingThreads() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquireWait.getCount();
+    }
+
+    @Override
+    public long getAcquireWaitP50Micros() {
+        return acquireWait.percentileMicros(50);
+    }
+
+    @Override
+    public long getAcquireWaitP99Micros() {
+        return acquireWait.percentileMicros(99);
+    }
+
+    @Override
+    public long getAcquireWaitMaxMicros() {
+        return acquireWait.getMaxMicros();
+    }
+
+    @Override
+    public long getUsageP50Micros() {
+        return usage.percentileMicros(50);
+    }
+
+    @Override
+    public long getUsageP99Micros() {
+        return usage.percentileMicros(99);
+    }
+
+    @Override
+    public long getUsageMaxMicros() {
+        return usage.getMaxMicros();
+    }
+
+    @Override
+    public double getStatementCacheHitRate() {
+        return statementStats.hitRate();
+    }
+
+    /**
+     * Borrowed connections plus threads waiting for one.
+     */
+    public int getLoad() {
+        return borrowed.size() + permits.getQueueLength();
+    }
+
+    public String getUrl() {
+        return settings.url;
+    }
+
+    /**
+     * Close the idle connections and stop housekeeping. Borrowed connections
+     * are closed when they are returned.
+     */
+    public void shutdown() {
+        housekeeper.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            closePhysical(connection);
+        }
+    }
+}
+
+/**
+ * How a replica is chosen for a read.
+ */
+enum ReplicaSelection {
+    ROUND_ROBIN,
+    LEAST_LOADED
+}
+
+/**
+ * A client's view of the database for read-your-writes routing. After the
+ * session returns a write connection, its reads go to the primary for the
+ * configured window, long enough for the replicas to catch up.
+ */
+class Session {
+    private volatile long lastWriteAt = Long.MIN_VALUE;
+
+    void markWrite() {
+        lastWriteAt = System.nanoTime();
+    }
+
+    boolean wroteWithin(long windowNanos) {
+        return lastWriteAt != Long.MIN_VALUE && System.nanoTime() - lastWriteAt < windowNanos;
+    }
+}
+
+/**
+ * Routes read-only work to a set of replica pools. Round-robin spreads reads
+ * evenly; least-loaded picks the replica with the fewest borrowed connections
+ * and waiting threads. If the chosen replica cannot provide a connection
+ * within `db.replicaAcquireTimeoutMillis` (no wait by default) the read falls
+ * back to the primary, and without replicas every read goes to the primary.
+ */
+class ReplicaRouter {
+    private final ConnectionPool primary;
+    private final List<ConnectionPool> replicas;
+    private final ReplicaSelection selection;
+    private final long readYourWritesNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas,
+                  ReplicaSelection selection, long readYourWritesMillis) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.selection = selection;
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+    }
+
+    Connection write(Session session) throws SQLException {
+        return primary.acquire(session == null ? null : session::markWrite);
+    }
+
+    Connection read(Session session) throws SQLException {
+        if (replicas.isEmpty() || (session != null && session.wroteWithin(readYourWritesNanos))) {
+            return primary.acquire();
+        }
+        Connection connection;
+        try {
+            connection = pickReplica().acquire();
+        } catch (SQLException e) {
+            return primary.acquire();
+        }
+        try {
+            connection.setReadOnly(true);
+            return connection;
+        } catch (SQLException e) {
+            // Give the replica its permit back before falling back.
             try {
-                instances.put(clsName, cls.getDeclaredConstructor().newInstance());
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to create singleton instance.", e);
+                connection.close();
+            } catch (SQLException ignored) {
+                // The pool closes a connection it cannot reset.
             }
+            return primary.acquire();
+        }
+    }
+
+    private ConnectionPool pickReplica() {
+        if (selection == ReplicaSelection.ROUND_ROBIN) {
+            return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+        }
+        ConnectionPool best = replicas.get(0);
+        for (ConnectionPool replica : replicas) {
+            if (replica.getLoad() < best.getLoad()) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    void shutdown() {
+        primary.shutdown();
+        replicas.forEach(ConnectionPool::shutdown);
+    }
+
+    /**
+     * Register every pool with the platform MBean server, named after its
+     * role, so the gauges and histograms can be read with any JMX client.
+     */
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(primary, new ObjectName("patterns.Singleton:type=ConnectionPool,name=primary"));
+            for (int i = 0; i < replicas.size(); i++) {
+                server.registerMBean(replicas.get(i),
+                    new ObjectName("patterns.Singleton:type=ConnectionPool,name=replica-" + (i + 1)));
+            }
+        } catch (JMException e) {
+            System.err.println("DatabaseConnection: failed to register pool MBeans: " + e.getMessage());
         }
-        return cls.cast(instances.get(clsName));
     }
 }
 
 /**
  * Database Connection Singleton
+ *
+ * The singleton no longer hands out one shared connection; it owns the
+ * application's single connection pool and lends connections from it.
  */
 class DatabaseConnection extends Singleton {
-    private String connection;
+    private final ConnectionPool pool;
+    private final ReplicaRouter router;
 
     /**
-     * Protected constructor to simulate a database connection.
+     * Protected constructor creating the application's connection pools: the
+     * primary at `db.url` and one pool per URL in the comma-separated
+     * `db.replicas` property.
      */
     protected DatabaseConnection() {
-        this.connection = "Database Connection Established";
+        this.pool = new ConnectionPool(new PoolSettings());
+        List<ConnectionPool> replicas = new ArrayList<>();
+        for (String url : System.getProperty("db.replicas", "").split(",")) {
+            if (!url.isBlank()) {
+                PoolSettings settings = new PoolSettings();
+                settings.url = url.trim();
+                // A saturated or unreachable replica should send reads to the
+                // primary right away, not after the primary's acquire timeout.
+                settings.acquireTimeoutMillis = Long.getLong("db.replicaAcquireTimeoutMillis", 0L);
+                replicas.add(new ConnectionPool(settings));
+            }
+        }
+        this.router = new ReplicaRouter(pool, replicas,
+            ReplicaSelection.valueOf(System.getProperty("db.replicaSelection", "LEAST_LOADED")),
+            Long.getLong("db.readYourWritesMillis", 1_000L));
+        router.registerMBeans();
+        Runtime.getRuntime().addShutdownHook(new Thread(router::shutdown, "pool-shutdown"));
+    }
+
+    /**
+     * Borrow a database connection. Close it to return it to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        return pool.acquire();
+    }
+
+    /**
+     * Borrow a primary connection for writes. Once the session closes it, the
+     * session's reads stay on the primary for the read-your-writes window.
+     */
+    public Connection getWriteConnection(Session session) throws SQLException {
+        return router.write(session);
     }
 
     /**
-     * Get the database connection.
+     * Borrow a connection for read-only work, usually from a replica.
      */
-    public String getConnection() {
-        return this.connection;
+    public Connection getReadConnection() throws SQLException {
+        return router.read(null);
+    }
+
+    public Connection getReadConnection(Session session) throws SQLException {
+        return router.read(session);
+    }
+
+    public StatementCacheStats getStatementCacheStats() {
+        return pool.getStatementCacheStats();
+    }
+
+    public DatabaseConnectionExample.ConnectionPoolMXBean getPoolMetrics() {
+        return pool;
+    }
+}
+
+/**
+ * Measures how throughput scales with the pool size when many threads share
+ * a pool. Each operation borrows a connection, waits for the simulated
+ * network round trip given by `db.benchmark.roundTripMillis` (SQLite runs
+ * in-process, so it has none of its own) and runs a trivial query.
+ */
+class ConnectionPoolBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Integer.getInteger("db.benchmark.threads", 32);
+        long roundTripMillis = Long.getLong("db.benchmark.roundTripMillis", 2L);
+        long durationMillis = Long.getLong("db.benchmark.durationMillis", 2_000L);
+
+        for (int size : new int[] {1, 2, 4, 8, 16}) {
+            PoolSettings settings = new PoolSettings();
+            settings.maxSize = size;
+            ConnectionPool pool = new ConnectionPool(settings);
+            AtomicLong operations = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        try (Connection connection = pool.acquire();
+                             Statement statement = connection.createStatement()) {
+                            Thread.sleep(roundTripMillis);
+                            try (ResultSet result = statement.executeQuery("SELECT 1")) {
+                                result.next();
+                            }
+                            operations.incrementAndGet();
+                        } catch (SQLException e) {
+                            throw new RuntimeException("Benchmark query failed.", e);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            pool.shutdown();
+            System.out.printf("pool size %2d: %,d operations/s, acquire wait p99 %,d us, timeouts %d%n",
+                size, operations.get() * 1000 / durationMillis, pool.getAcquireWaitP99Micros(), pool.getAcquireTimeouts());
+        }
     }
 }
 
@@ -114,15 +945,86 @@ class DatabaseConnection extends Singleton {
  * The client code.
  */
 public class DatabaseConnectionExample {
-    public static void main(String[] args) {
+    /**
+     * The pool's management interface, registered with the platform MBean
+     * server by DatabaseConnection. JMX only accepts public interfaces, so it
+     * is nested in the example's public class.
+     */
+    public interface ConnectionPoolMXBean {
+        int getActiveConnections();
+
+        int getIdleConnections();
+
+        int getPendingThreads();
+
+        long getAcquireTimeouts();
+
+        long getAcquireCount();
+
+        long getAcquireWaitP50Micros();
+
+        long getAcquireWaitP99Micros();
+
+        long getAcquireWaitMaxMicros();
+
+        long getUsageP50Micros();
+
+        long getUsageP99Micros();
+
+        long getUsageMaxMicros();
+
+        double getStatementCacheHitRate();
+    }
+
+    public static void main(String[] args) throws SQLException {
         // Get the singleton instance of DatabaseConnection
         DatabaseConnection db1 = Singleton.getInstance(DatabaseConnection.class);
-        System.out.println(db1.getConnection());
+        try (Connection connection = db1.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS visits (id INTEGER PRIMARY KEY, at TEXT)");
+            statement.executeUpdate("INSERT INTO visits (at) VALUES (datetime('now'))");
+            System.out.println("Database Connection Established: " + connection);
+        }
 
         // Verify that only one instance exists
         DatabaseConnection db2 = Singleton.getInstance(DatabaseConnection.class);
         if (db1 == db2) {
             System.out.println("Only one instance of DatabaseConnection exists.");
         }
+
+        // The connection returned above is reused from the pool, and repeated
+        // statements are prepared only once per connection
+        for (int i = 0; i < 3; i++) {
+            try (Connection connection = db2.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM visits WHERE id > ?")) {
+                statement.setInt(1, i);
+                try (ResultSet result = statement.executeQuery()) {
+                    result.next();
+                    System.out.println("Visits after #" + i + ": " + result.getInt(1));
+                }
+            }
+        }
+        System.out.println("Statement cache: " + db2.getStatementCacheStats());
+
+        // With `-Ddb.replicas=jdbc:sqlite:replica1.sqlite,jdbc:sqlite:replica2.sqlite`
+        // separate SQLite files stand in for replicas. They are not replicated,
+        // which makes it easy to see where each read was routed.
+        Session session = new Session();
+        try (Connection connection = db1.getWriteConnection(session);
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO visits (at) VALUES (datetime('now'))");
+        }
+        try (Connection connection = db1.getReadConnection(session)) {
+            System.out.println("Read after own write served by " + connection.getMetaData().getURL());
+        }
+        try (Connection connection = db1.getReadConnection()) {
+            System.out.println("Read without session served by " + connection.getMetaData().getURL());
+        }
+
+        // The same numbers are available over JMX as patterns.Singleton:type=ConnectionPool
+        ConnectionPoolMXBean metrics = db1.getPoolMetrics();
+        System.out.printf("Primary pool: %d active, %d idle, %d acquisitions, wait p99 %d us, usage p99 %d us%n",
+            metrics.getActiveConnections(), metrics.getIdleConnections(), metrics.getAcquireCount(),
+            metrics.getAcquireWaitP99Micros(), metrics.getUsageP99Micros());
     }
-}
\ No newline at end of file
+}